@@ -5,6 +5,7 @@ package nachos.machine;
 import nachos.security.*;
 import nachos.threads.KThread;
 import nachos.threads.Semaphore;
+import nachos.threads.CountDownLatch;
 
 import java.util.Vector;
 import java.util.LinkedList;
@@ -113,6 +114,7 @@ public final class ElevatorBank implements Runnable {
 	    });
 	}
 
+	ridersDone = new CountDownLatch(numRiders);
 	for (int i=0; i<numRiders; i++)
 	    riders[i].initialize();
 	manager.initialize();
@@ -121,8 +123,7 @@ public final class ElevatorBank implements Runnable {
 	    riders[i].run();
 	manager.run();
 
-	for (int i=0; i<numRiders; i++)
-	    riders[i].join();
+	ridersDone.await();
 	manager.join();
 
 	simulationStarted = false;
@@ -568,7 +569,7 @@ public final class ElevatorBank implements Runnable {
 	    
 	    Lib.assertTrue(KThread.currentThread() == thread);
 	    
-	    done.V();
+	    ridersDone.countDown();
 	    KThread.finish();
 	}
 
@@ -591,10 +592,6 @@ public final class ElevatorBank implements Runnable {
 	    thread.fork();
 	}
 
-	void join() {
-	    done.P();
-	}
-
     	RiderInterface rider;
 	boolean inElevator = false, finished = false;
 	int floor, elevator;
@@ -602,7 +599,6 @@ public final class ElevatorBank implements Runnable {
 	Runnable interrupt, handler = null;
 	LinkedList<RiderEvent> events = new LinkedList<RiderEvent>();
 	Vector<Integer> floors = new Vector<Integer>();
-	Semaphore done = new Semaphore(0);
 	KThread thread;
     }
 
@@ -613,6 +609,7 @@ public final class ElevatorBank implements Runnable {
     private int numRiders;
     private Vector<RiderControls> ridersVector;
     private RiderState[] riders;
+    private CountDownLatch ridersDone;
     
     private boolean simulationStarted, enableGui;
     private Privilege privilege;
@@ -351,6 +351,15 @@ public final class Machine {
      */
     public static AutoGrader autoGrader() { return autoGrader; }
 
+    /**
+     * Return the runtime statistics. The kernel may update the counters that
+     * describe its own behavior (for example, scheduling statistics), which
+     * are printed along with the hardware statistics when Nachos halts.
+     *
+     * @return	the runtime statistics.
+     */
+    public static Stats stats() { return stats; }
+
     private static Interrupt interrupt = null;
     private static Timer timer = null;
     private static ElevatorBank bank = null;
@@ -26,9 +26,36 @@ public final class Stats {
 	System.out.println("Console I/O: reads " + numConsoleReads
 			   + ", writes " + numConsoleWrites);
 	System.out.println("Paging: page faults " + numPageFaults
-			   + ", TLB misses " + numTLBMisses);
+			   + ", TLB misses " + numTLBMisses
+			   + ", evictions " + numEvictions);
+	System.out.println("Swap: reads " + numSwapReads
+			   + ", pages read " + numSwapPagesRead
+			   + ", writes " + numSwapWrites
+			   + ", pages written " + numSwapPagesWritten);
+	System.out.println("Prefetch: hits " + numPrefetchHits
+			   + ", misses " + numPrefetchMisses);
+	System.out.println("Fork: pages shared " + numForkPagesShared
+			   + ", pages copied " + numCopyOnWriteCopies);
+	System.out.println("Text: pages shared " + numTextPagesShared);
 	System.out.println("Network I/O: received " + numPacketsReceived
-			   + ", sent " + numPacketsSent);
+			   + ", sent " + numPacketsSent
+			   + ", mail dropped " + numMailDropped);
+	System.out.println("Scheduling: context switches " + numContextSwitches
+			   + ", max ready queue " + maxReadyQueueLength
+			   + ", mean ready wait "
+			   + (numReadyWaits == 0 ? 0 : readyWaitTicks/numReadyWaits)
+			   + ", timer interrupts " + numTimerInterrupts);
+	System.out.print("Ready wait histogram:");
+	for (int i=0; i<readyWaitHistogram.length; i++) {
+	    if (readyWaitHistogram[i] != 0)
+		System.out.print(" <" + (1L << i) + ":" + readyWaitHistogram[i]);
+	}
+	System.out.println();
+	System.out.println("Multiprocessor: steals " + numSteals
+			   + ", migrations " + numMigrations);
+	System.out.println("Scheduler: max vruntime lag " + maxVruntimeLag
+			   + ", deadline misses " + numDeadlineMisses
+			   + ", deadlines rejected " + numDeadlineRejections);
     }
 
     /**
@@ -57,10 +84,98 @@ public final class Stats {
     public int numPageFaults = 0;
     /** The total number of TLB misses that have occurred. */
     public int numTLBMisses = 0;
+    /**
+     * The total number of resident pages the kernel has replaced to make room
+     * for other pages.
+     */
+    public int numEvictions = 0;
+    /**
+     * The total number of reads from the swap file. One read may load
+     * several pages.
+     */
+    public int numSwapReads = 0;
+    /** The total number of pages read from the swap file. */
+    public int numSwapPagesRead = 0;
+    /**
+     * The total number of writes to the swap file. One write may store
+     * several pages.
+     */
+    public int numSwapWrites = 0;
+    /** The total number of pages written to the swap file. */
+    public int numSwapPagesWritten = 0;
+    /**
+     * The total number of pages brought in ahead of a page fault and then
+     * used.
+     */
+    public int numPrefetchHits = 0;
+    /**
+     * The total number of pages brought in ahead of a page fault that were
+     * replaced, or whose process exited, before they were used.
+     */
+    public int numPrefetchMisses = 0;
+    /** The total number of resident pages shared between processes by fork. */
+    public int numForkPagesShared = 0;
+    /**
+     * The total number of shared pages copied because one of the processes
+     * sharing them wrote to them.
+     */
+    public int numCopyOnWriteCopies = 0;
+    /**
+     * The number of page faults on read-only pages handled by mapping a page
+     * another process running the same executable brought in.
+     */
+    public int numTextPagesShared = 0;
     /** The total number of packets Nachos has sent to the network. */
     public int numPacketsSent = 0;
     /** The total number of packets Nachos has received from the network. */
     public int numPacketsReceived = 0;
+    /**
+     * The number of messages the post office dropped because the mailbox of
+     * their port was full.
+     */
+    public int numMailDropped = 0;
+
+    /** The total number of timer interrupts, periodic or one-shot. */
+    public long numTimerInterrupts = 0;
+    /** The total number of times a thread was dispatched to the processor. */
+    public long numContextSwitches = 0;
+    /** The largest number of threads ever waiting in the ready queue. */
+    public int maxReadyQueueLength = 0;
+    /** The number of times a thread went from the ready queue to running. */
+    public long numReadyWaits = 0;
+    /** The total time threads have spent waiting in the ready queue. */
+    public long readyWaitTicks = 0;
+    /**
+     * A histogram of the time threads spent in the ready queue. Bucket
+     * <i>i</i> counts waits shorter than 2<sup><i>i</i></sup> ticks but not
+     * shorter than 2<sup><i>i</i>-1</sup> ticks; the last bucket also counts
+     * all longer waits.
+     */
+    public final long[] readyWaitHistogram = new long[HistogramBuckets];
+
+    /**
+     * The number of times a virtual processor with an empty run queue took a
+     * thread from another processor's run queue.
+     */
+    public long numSteals = 0;
+    /** The number of times a thread ran on a different virtual processor. */
+    public long numMigrations = 0;
+
+    /**
+     * The largest difference in virtual runtime observed between two threads
+     * waiting in the same queue of a fair scheduler. A small value means every
+     * thread has been getting close to its weighted share of the processor.
+     */
+    public long maxVruntimeLag = 0;
+    /** The number of thread activations that finished after their deadline. */
+    public int numDeadlineMisses = 0;
+    /** The number of deadlines refused by the scheduler's admission control. */
+    public int numDeadlineRejections = 0;
+
+    /**
+     * The number of buckets in each logarithmic histogram.
+     */
+    public static final int HistogramBuckets = 24;
 
     /**
      * The amount to advance simulated time after each user instructions is
@@ -13,6 +13,12 @@ import nachos.security.*;
  * interrupt to occur every time approximately 500 clock ticks pass. There is
  * a small degree of randomness here, so interrupts do not occur exactly every
  * 500 ticks.
+ *
+ * <p>
+ * The periodic interrupt can be turned off with <tt>setPeriodic()</tt>, and
+ * <tt>setWakeup()</tt> requests a one-shot timer interrupt at a specific
+ * time, so that a kernel that knows when it next needs the timer does not
+ * have to handle an interrupt every 500 ticks.
  */
 public final class Timer {
     /**
@@ -27,7 +33,22 @@ public final class Timer {
 	this.privilege = privilege;
 	
 	timerInterrupt = new Runnable() {
-		public void run() { timerInterrupt(); }
+		public void run() {
+		    periodicPending = false;
+		    if (periodic)
+			scheduleInterrupt();
+		    timerInterrupt();
+		}
+	    };
+
+	wakeupInterrupt = new Runnable() {
+		public void run() {
+		    // an earlier wakeup may have replaced this one
+		    if (getTime() < wakeupTime)
+			return;
+		    wakeupTime = Long.MAX_VALUE;
+		    timerInterrupt();
+		}
 	    };
 	
 	autoGraderInterrupt = new Runnable() {
@@ -50,6 +71,40 @@ public final class Timer {
 	this.handler = handler;
     }
 
+    /**
+     * Turn the periodic timer interrupt on or off. While it is off, timer
+     * interrupts only occur at the times requested with
+     * <tt>setWakeup()</tt>. A periodic interrupt that is already pending when
+     * the timer is turned off still occurs.
+     *
+     * @param	periodic	<tt>true</tt> to interrupt approximately every
+     *				500 clock ticks.
+     */
+    public void setPeriodic(boolean periodic) {
+	this.periodic = periodic;
+
+	if (periodic && !periodicPending)
+	    scheduleInterrupt();
+    }
+
+    /**
+     * Request a one-shot timer interrupt at the specified time, or at the
+     * next clock tick if that time has passed. If an earlier one-shot
+     * interrupt is already pending, this request is ignored; a later one is
+     * replaced.
+     *
+     * @param	time	the time at which to interrupt.
+     */
+    public void setWakeup(long time) {
+	time = Math.max(time, getTime() + 1);
+
+	if (time >= wakeupTime)
+	    return;
+
+	wakeupTime = time;
+	privilege.interrupt.schedule(time - getTime(), "timer", wakeupInterrupt);
+    }
+
     /**
      * Get the current time.
      *
@@ -60,7 +115,7 @@ public final class Timer {
     }
 
     private void timerInterrupt() {
-	scheduleInterrupt();
+	privilege.stats.numTimerInterrupts++;
 	scheduleAutoGraderInterrupt();
 
 	lastTimerInterrupt = getTime();
@@ -74,6 +129,7 @@ public final class Timer {
 	delay += Lib.random(delay/10) - (delay/20);
 
 	privilege.interrupt.schedule(delay, "timer", timerInterrupt);
+	periodicPending = true;
     }
 
     private void scheduleAutoGraderInterrupt() {
@@ -82,6 +138,10 @@ public final class Timer {
 
     private long lastTimerInterrupt;
     private Runnable timerInterrupt;
+    private Runnable wakeupInterrupt;
+    private boolean periodic = true;
+    private boolean periodicPending = false;
+    private long wakeupTime = Long.MAX_VALUE;
     private Runnable autoGraderInterrupt;
 
     private Privilege privilege;
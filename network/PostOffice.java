@@ -13,11 +13,22 @@ import nachos.threads.*;
  * The post office uses a "postal worker" thread to wait for messages to arrive
  * from the network and to place them in the appropriate queues. This cannot
  * be done in the receive interrupt handler because each queue (implemented
- * with a <tt>SynchList</tt>) is protected by a lock.
+ * with a <tt>BoundedSynchList</tt>) is protected by a lock.
+ *
+ * <p>
+ * Each queue holds at most <tt>PostOffice.mailboxCapacity</tt> messages
+ * (32 by default). What happens to mail for a full queue depends on
+ * <tt>PostOffice.dropWhenFull</tt>. If it is true (the default), the mail is
+ * dropped, just as the network may drop it, and counted in
+ * <tt>Stats.numMailDropped</tt>. Otherwise each port gets its own "courier"
+ * thread the first time mail arrives for it: the postal worker hands the mail
+ * to the port's courier, which waits for room in the queue, so a port that
+ * is not being read holds up only its own mail.
  */
 public class PostOffice {
     /**
-     * Allocate a new post office, using an array of <tt>SynchList</tt>s.
+     * Allocate a new post office, using an array of
+     * <tt>BoundedSynchList</tt>s.
      * Register the interrupt handlers with the network hardware and start the
      * "postal worker" thread.
      */
@@ -26,9 +37,14 @@ public class PostOffice {
 	messageSent = new Semaphore(0);
 	sendLock = new Lock();
 
-	queues = new SynchList[MailMessage.portLimit];
+	int mailboxCapacity = Config.getInteger("PostOffice.mailboxCapacity",
+						32);
+	dropWhenFull = Config.getBoolean("PostOffice.dropWhenFull", true);
+
+	queues = new BoundedSynchList[MailMessage.portLimit];
 	for (int i=0; i<queues.length; i++)
-	    queues[i] = new SynchList();
+	    queues[i] = new BoundedSynchList(mailboxCapacity);
+	couriers = new SynchList[MailMessage.portLimit];
 
 	Runnable receiveHandler = new Runnable() {
 	    public void run() { receiveInterrupt(); }
@@ -66,6 +82,30 @@ public class PostOffice {
 	return mail;
     }
 
+    /**
+     * Retrieve all the messages waiting on the specified port, up to the
+     * length of <i>mail</i>, waiting for at least one if necessary.
+     *
+     * @param	port	the port on which to wait for messages.
+     * @param	mail	the array in which to store the messages received.
+     *
+     * @return	the number of messages received.
+     */
+    public int receive(int port, MailMessage[] mail) {
+	Lib.assertTrue(port >= 0 && port < queues.length);
+
+	Lib.debug(dbgNet, "waiting for mail on port " + port);
+
+	int amount = queues[port].drainTo(mail, mail.length);
+
+	if (Lib.test(dbgNet)) {
+	    for (int i=0; i<amount; i++)
+		System.out.println("got mail on port " + port + ": " + mail[i]);
+	}
+
+	return amount;
+    }
+
     /**
      * Wait for incoming messages, and then put them in the correct mailbox.
      */
@@ -88,11 +128,43 @@ public class PostOffice {
 		System.out.println("delivering mail to port " + mail.dstPort
 				   + ": " + mail);
 
-	    // atomically add message to the mailbox and wake a waiting thread
-	    queues[mail.dstPort].add(mail);
+	    if (!dropWhenFull) {
+		deliverByCourier(mail);
+	    }
+	    // atomically add message to the mailbox and wake a waiting thread,
+	    // or drop it if the mailbox is full
+	    else if (!queues[mail.dstPort].offer(mail)) {
+		Lib.debug(dbgNet, "mailbox full, dropping mail for port "
+			  + mail.dstPort);
+		Machine.stats().numMailDropped++;
+	    }
 	}
     }
 
+    /**
+     * Hand a message to the courier of its port, starting the courier if
+     * this is the first message for the port. Never blocks.
+     */
+    private void deliverByCourier(MailMessage mail) {
+	final int port = mail.dstPort;
+
+	if (couriers[port] == null) {
+	    final SynchList pending = new SynchList();
+	    couriers[port] = pending;
+
+	    KThread t = new KThread(new Runnable() {
+		    public void run() {
+			while (true)
+			    queues[port].add(pending.removeFirst());
+		    }
+		});
+
+	    t.setName("courier " + port).fork();
+	}
+
+	couriers[port].add(mail);
+    }
+
     /**
      * Called when a packet has arrived and can be dequeued from the network
      * link.
@@ -125,7 +197,9 @@ public class PostOffice {
 	messageSent.V();
     }
 
-    private SynchList[] queues;
+    private boolean dropWhenFull;
+    private BoundedSynchList[] queues;
+    private SynchList[] couriers;	// mail waiting for room, by port
     private Semaphore messageReceived;	// V'd when a message can be dequeued
     private Semaphore messageSent;	// V'd when a message can be queued
     private Lock sendLock;
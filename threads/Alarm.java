@@ -1,13 +1,44 @@
 package nachos.threads;
-import java.util.*;
+
 import nachos.machine.*;
 
 /**
  * Uses the hardware timer to provide preemption, and to allow threads to sleep
  * until a certain time.
+ *
+ * <p>
+ * Pending wakeups are kept in a hierarchical timing wheel keyed on
+ * <tt>Machine.timer().getTime()</tt>. The wheel has <tt>numLevels</tt>
+ * levels of <tt>wheelSize</tt> slots each; a slot in level <i>L</i> holds the
+ * wakeups due in one span of <tt>wheelSize</tt><sup><i>L</i></sup> ticks,
+ * and wakeups further away than the top level can reach wait in an overflow
+ * list. When the bottom level wraps around, the next slot of the level above
+ * is cascaded down. Each level keeps a bitmap of its non-empty slots, so the
+ * wheel jumps straight to the next tick with a slot to expire or cascade
+ * instead of stepping through the ticks in between. Adding, expiring, and
+ * cancelling a wakeup therefore take constant time, no matter how many are
+ * pending or how long the wheel has been idle.
+ *
+ * <p>
+ * Wakeup records are linked into their slots through fields of their own and
+ * are reused once they expire or are cancelled, so sleeping does not
+ * allocate memory after the pool has grown large enough. Besides waking
+ * threads, a wakeup can run a handler; <tt>setTimeout()</tt> returns a handle
+ * that <tt>cancelTimeout()</tt> accepts, and records carry a generation
+ * number so that a stale handle never cancels a reused record.
+ *
+ * <p>
+ * If <tt>Alarm.tickless</tt> is set in <tt>nachos.conf</tt>, the alarm does
+ * not rely on the periodic timer interrupt to notice wakeups. Instead it
+ * asks the timer for a one-shot interrupt at the earliest time the wheel
+ * needs attention, and keeps the periodic interrupt on only while a thread
+ * is waiting in the ready queue, since preemption is then the only reason
+ * for it. To let nearby wakeups share an interrupt, one-shot interrupts are
+ * requested on multiples of <tt>Alarm.ticklessSlack</tt> ticks (by default
+ * 128, a quarter of the timer period), so a wakeup may be that much later
+ * than requested; with the periodic timer, it may be up to a whole period
+ * late.
  */
-
-		
 public class Alarm {
     /**
      * Allocate a new Alarm. Set the machine's timer interrupt handler to this
@@ -15,56 +46,46 @@ public class Alarm {
      *
      * <p><b>Note</b>: Nachos will not function correctly with more than one
      * alarm.
-     */	
+     */
     public Alarm() {
+	for (int level=0; level<numLevels; level++) {
+	    for (int slot=0; slot<wheelSize; slot++)
+		wheel[level][slot] = new Wakeup(-1);
+	}
+	wheelTime = Machine.timer().getTime();
+	tickless = Config.getBoolean("Alarm.tickless", false);
+	ticklessSlack = Config.getInteger("Alarm.ticklessSlack", 128);
+	Lib.assertTrue(ticklessSlack > 0);
+
 	Machine.timer().setInterruptHandler(new Runnable() {
 		public void run() { timerInterrupt(); }
 	    });
     }
-    
-    //class that holds thread with its waketime
-    class thread_waketime{
-    	public long waketime;
-    	public KThread current_thread;
-    	public thread_waketime(long waketime, KThread current_thread) {
-    		this.waketime = waketime;
-    		this.current_thread = current_thread;
-    	}
-    }
-    //comparator class that compares the wake time of threads
-    class sort_by_time implements Comparator<thread_waketime>{
-		public int compare(thread_waketime thread1, thread_waketime thread2) {
-			//return positive if thread1 > thread2
-			if(thread1.waketime > thread2.waketime) {
-				return 1;
-			}
-			//return negative if thread1 < thread2
-			else if(thread1.waketime < thread2.waketime) {
-				return -1;
-			}
-			//return 0 if thread1 = thread2
-			else if(thread1.waketime == thread2.waketime) {
-				return 0;
-			}
-			return 0;
-		}
-    }
+
     /**
      * The timer interrupt handler. This is called by the machine's timer
-     * periodically (approximately every 500 clock ticks). Causes the current
+     * periodically (approximately every 500 clock ticks). Wakes every thread
+     * and runs every handler whose time has come, then causes the current
      * thread to yield, forcing a context switch if there is another thread
      * that should be run.
      */
-    Comparator<thread_waketime> compare = new sort_by_time();
-    PriorityQueue<thread_waketime> waiting_queue = new PriorityQueue<thread_waketime>(1, compare);
-    
     public void timerInterrupt() {
-	KThread.currentThread().yield();
-	Machine.interrupt().disable();
-	while((waiting_queue.peek() != null) && (waiting_queue.peek().waketime <= Machine.timer().getTime())) { //check if the first element in the queue is not empty, and the wake time is at the timer of the machine
-		waiting_queue.poll().current_thread.ready(); // if so, put it in ready queue()
+	boolean intStatus = Machine.interrupt().disable();
+
+	ThreadedKernel.scheduler.timerInterrupt();
+
+	long start = System.nanoTime();
+	advance(Machine.timer().getTime());
+	expireNanos += System.nanoTime() - start;
+
+	if (tickless) {
+	    programWakeup();
+	    Machine.timer().setPeriodic(SchedulingMetrics.readyQueueLength() > 0);
 	}
-	Machine.interrupt().enable();
+
+	Machine.interrupt().restore(intStatus);
+
+	KThread.currentThread().yield();
     }
 
     /**
@@ -81,15 +102,405 @@ public class Alarm {
      *
      * @see	nachos.machine.Timer#getTime()
      */
-    
     public void waitUntil(long x) {
-	// for now, cheat just to get something working (busy waiting is bad)
-    	Machine.interrupt().disable();
-    	long wakeTime = Machine.timer().getTime() + x;
-    	thread_waketime cur_thread = new thread_waketime(wakeTime, KThread.currentThread()); //add current_thread + its waketime to the thread_waketime class
-    	waiting_queue.add(cur_thread); // add it to the priority queue
-    	KThread.currentThread().sleep(); 
-    	Machine.interrupt().enable();
+	boolean intStatus = Machine.interrupt().disable();
+
+	Wakeup wakeup = allocate(Machine.timer().getTime() + x);
+	wakeup.thread = KThread.currentThread();
+	insert(wakeup);
+	if (tickless)
+	    setWakeup(wakeup.time);
+
+	KThread.sleep();
+
+	Machine.interrupt().restore(intStatus);
     }
-}
 
+    /**
+     * Arrange for <i>handler</i> to be run by the timer interrupt handler,
+     * with interrupts disabled, during the first timer interrupt at least
+     * <i>x</i> ticks from now. Must be called with interrupts disabled.
+     *
+     * @param	x	the minimum number of clock ticks to wait.
+     * @param	handler	the handler to run.
+     * @return	a handle that can be passed to <tt>cancelTimeout()</tt>.
+     */
+    public long setTimeout(long x, Runnable handler) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+	Lib.assertTrue(handler != null);
+
+	Wakeup wakeup = allocate(Machine.timer().getTime() + x);
+	wakeup.handler = handler;
+	insert(wakeup);
+	if (tickless)
+	    setWakeup(wakeup.time);
+
+	return ((long) wakeup.generation << 32) | wakeup.index;
+    }
+
+    /**
+     * Cancel a timeout set by <tt>setTimeout()</tt>, if its handler has not
+     * run yet. Must be called with interrupts disabled.
+     *
+     * @param	handle	the handle returned by <tt>setTimeout()</tt>.
+     * @return	<tt>true</tt> if the timeout was cancelled before its handler
+     *		ran.
+     */
+    public boolean cancelTimeout(long handle) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	int index = (int) handle;
+	Lib.assertTrue(index >= 0 && index < numRecords);
+
+	Wakeup wakeup = records[index];
+	if (wakeup.generation != (int) (handle >>> 32) || wakeup.prev == null)
+	    return false;
+
+	unlink(wakeup);
+	free(wakeup);
+	return true;
+    }
+
+    /**
+     * Return the number of wakeups that have not yet expired or been
+     * cancelled.
+     *
+     * @return	the number of pending wakeups.
+     */
+    public int getNumPending() {
+	return numPending;
+    }
+
+    /**
+     * Return the host time, in nanoseconds, that the timer interrupt handler
+     * has spent expiring wakeups, for measuring the wheel apart from the
+     * rest of the simulation.
+     *
+     * @return	the host time spent expiring wakeups.
+     */
+    long getExpireNanos() {
+	return expireNanos;
+    }
+
+    /**
+     * Called by <tt>KThread.ready()</tt> with interrupts disabled. In
+     * tickless mode, a thread waiting in the ready queue needs the periodic
+     * timer interrupt to preempt the current thread.
+     */
+    void threadReady() {
+	if (tickless)
+	    Machine.timer().setPeriodic(true);
+    }
+
+    /**
+     * Ask the timer for a one-shot interrupt at the first tick at which the
+     * wheel has something to do.
+     */
+    private void programWakeup() {
+	if (numPending == 0)
+	    return;
+
+	setWakeup(nextEvent());
+    }
+
+    /**
+     * Return the first tick, no earlier than <tt>wheelTime</tt>, at which the
+     * wheel has something to do: the time of the first non-empty slot of the
+     * bottom level, or the time at which the first non-empty slot of a
+     * higher level, or the overflow list, is cascaded, whichever comes first.
+     * A slot whose wakeups were all cancelled may still be marked non-empty,
+     * in which case this is just a tick earlier than necessary.
+     *
+     * @return	the time of the next tick to look at, or
+     *		<tt>Long.MAX_VALUE</tt> if the wheel is empty.
+     */
+    private long nextEvent() {
+	long next = Long.MAX_VALUE;
+
+	int k = firstOccupied(0, wheelTime);
+	if (k < wheelSize)
+	    next = wheelTime + k;
+
+	for (int level=1; level<numLevels; level++) {
+	    // the first time at or after wheelTime that a slot of this level
+	    // is cascaded
+	    int shift = level * wheelBits;
+	    long span = ((wheelTime - 1) >> shift) + 1;
+
+	    k = firstOccupied(level, span);
+	    if (k < wheelSize)
+		next = Math.min(next, (span + k) << shift);
+	}
+
+	if (overflow.next != overflow) {
+	    int shift = numLevels * wheelBits;
+	    next = Math.min(next, (((wheelTime - 1) >> shift) + 1) << shift);
+	}
+
+	return next;
+    }
+
+    /**
+     * Return how many slots after the slot for <i>index</i> the first slot
+     * of a level marked non-empty is, wrapping around, or <tt>wheelSize</tt>
+     * if there is none.
+     */
+    private int firstOccupied(int level, long index) {
+	return Long.numberOfTrailingZeros(Long.rotateRight(occupied[level],
+							   (int) (index & slotMask)));
+    }
+
+    /**
+     * Ask the timer for a one-shot interrupt at the specified time, rounded
+     * up to a multiple of <tt>ticklessSlack</tt> so that wakeups that are
+     * close together share an interrupt.
+     */
+    private void setWakeup(long time) {
+	long slack = ticklessSlack;
+	Machine.timer().setWakeup((time + slack - 1) / slack * slack);
+    }
+
+    /**
+     * Expire every wakeup due at or before <i>time</i>, skipping the ticks at
+     * which the wheel has nothing to do.
+     */
+    private void advance(long time) {
+	while (wheelTime <= time) {
+	    long next = nextEvent();
+	    if (next > time) {
+		wheelTime = time + 1;
+		break;
+	    }
+	    wheelTime = next;
+
+	    int slot = (int) (wheelTime & slotMask);
+
+	    if (slot == 0)
+		cascade(1);
+
+	    // move the slot to the expiring list before running anything, so
+	    // that wakeups added by handlers land in a later tick, and wakeups
+	    // cancelled by handlers are simply unlinked
+	    Wakeup head = wheel[0][slot];
+	    occupied[0] &= ~(1L << slot);
+	    if (head.next != head) {
+		expiring.next = head.next;
+		expiring.prev = head.prev;
+		expiring.next.prev = expiring;
+		expiring.prev.next = expiring;
+		head.next = head.prev = head;
+	    }
+	    wheelTime++;
+
+	    while (expiring.next != expiring)
+		expire(expiring.next);
+	}
+    }
+
+    /**
+     * Move the wakeups in the current slot of the specified level down to
+     * the levels below, first cascading the level above if this level has
+     * wrapped around.
+     */
+    private void cascade(int level) {
+	Wakeup head;
+
+	if (level == numLevels) {
+	    head = overflow;
+	}
+	else {
+	    int slot = (int) ((wheelTime >> (level * wheelBits)) & slotMask);
+	    if (slot == 0)
+		cascade(level + 1);
+	    head = wheel[level][slot];
+	    occupied[level] &= ~(1L << slot);
+	}
+
+	Wakeup wakeup = head.next;
+	head.next = head.prev = head;
+
+	while (wakeup != head) {
+	    Wakeup next = wakeup.next;
+	    numPending--;
+	    insert(wakeup);
+	    wakeup = next;
+	}
+    }
+
+    /**
+     * Add a wakeup to the slot for its time, relative to the wheel's current
+     * time.
+     */
+    private void insert(Wakeup wakeup) {
+	long delta = wakeup.time - wheelTime;
+	Wakeup head;
+
+	if (delta < 0) {
+	    int slot = (int) (wheelTime & slotMask);
+	    head = wheel[0][slot];
+	    occupied[0] |= 1L << slot;
+	}
+	else {
+	    head = overflow;
+	    for (int level=0; level<numLevels; level++) {
+		if (delta < 1L << ((level+1) * wheelBits)) {
+		    int slot = (int) ((wakeup.time >> (level * wheelBits))
+				      & slotMask);
+		    head = wheel[level][slot];
+		    occupied[level] |= 1L << slot;
+		    break;
+		}
+	    }
+	}
+
+	wakeup.prev = head.prev;
+	wakeup.next = head;
+	head.prev.next = wakeup;
+	head.prev = wakeup;
+	numPending++;
+    }
+
+    private void unlink(Wakeup wakeup) {
+	wakeup.prev.next = wakeup.next;
+	wakeup.next.prev = wakeup.prev;
+	wakeup.prev = wakeup.next = null;
+	numPending--;
+    }
+
+    /**
+     * Unlink a wakeup that is due and return it to the pool, then wake its
+     * thread or run its handler.
+     */
+    private void expire(Wakeup wakeup) {
+	KThread thread = wakeup.thread;
+	Runnable handler = wakeup.handler;
+
+	unlink(wakeup);
+	free(wakeup);
+
+	if (thread != null)
+	    thread.ready();
+	else
+	    handler.run();
+    }
+
+    private Wakeup allocate(long time) {
+	Wakeup wakeup = freeList;
+
+	if (wakeup != null) {
+	    freeList = wakeup.next;
+	}
+	else {
+	    if (numRecords == records.length) {
+		Wakeup[] grown = new Wakeup[records.length * 2];
+		System.arraycopy(records, 0, grown, 0, numRecords);
+		records = grown;
+	    }
+	    wakeup = new Wakeup(numRecords);
+	    records[numRecords++] = wakeup;
+	}
+
+	wakeup.time = time;
+	wakeup.next = null;
+	return wakeup;
+    }
+
+    private void free(Wakeup wakeup) {
+	wakeup.generation++;
+	wakeup.thread = null;
+	wakeup.handler = null;
+	wakeup.prev = null;
+	wakeup.next = freeList;
+	freeList = wakeup;
+    }
+
+    private static class SleepTest implements Runnable {
+	SleepTest(long ticks, Semaphore done) {
+	    this.ticks = ticks;
+	    this.done = done;
+	}
+
+	public void run() {
+	    long start = Machine.timer().getTime();
+	    ThreadedKernel.alarm.waitUntil(ticks);
+	    Lib.assertTrue(Machine.timer().getTime() >= start + ticks);
+	    done.V();
+	}
+
+	private long ticks;
+	private Semaphore done;
+    }
+
+    /**
+     * Test if this module is working. Sleeps threads for delays on several
+     * levels of the wheel, and checks that a cancelled timeout never runs.
+     */
+    public static void selfTest() {
+	Semaphore done = new Semaphore(0);
+	long[] delays = { 0, 1, 700, 5000 };
+
+	for (int i=0; i<delays.length; i++)
+	    new KThread(new SleepTest(delays[i], done)).setName("sleeper").fork();
+
+	boolean intStatus = Machine.interrupt().disable();
+	long handle = ThreadedKernel.alarm.setTimeout(1000, new Runnable() {
+		public void run() { Lib.assertNotReached(); }
+	    });
+	Lib.assertTrue(ThreadedKernel.alarm.cancelTimeout(handle));
+	Lib.assertTrue(!ThreadedKernel.alarm.cancelTimeout(handle));
+	Machine.interrupt().restore(intStatus);
+
+	done.P(delays.length);
+    }
+
+    /**
+     * A pending wakeup, linked into a circular list with a sentinel record at
+     * the head of each slot. A record in the pool's free list has a
+     * <tt>null</tt> <tt>prev</tt>.
+     */
+    private static class Wakeup {
+	Wakeup(int index) {
+	    this.index = index;
+	    if (index < 0)
+		next = prev = this;
+	}
+
+	long time;
+	KThread thread;
+	Runnable handler;
+	Wakeup next, prev;
+	int generation = 0;
+	final int index;
+    }
+
+    /**
+     * The number of bits of the time used to index each level. At most 6, so
+     * that the bitmap of a level fits in a <tt>long</tt>.
+     */
+    private static final int wheelBits = 6;
+    /** The number of slots in each level of the wheel. */
+    private static final int wheelSize = 1 << wheelBits;
+    private static final long slotMask = wheelSize - 1;
+    /** The number of levels in the wheel. */
+    private static final int numLevels = 4;
+
+    private Wakeup[][] wheel = new Wakeup[numLevels][wheelSize];
+    /**
+     * A bitmap of the slots of each level that may be non-empty. A bit is
+     * set when a wakeup is added to its slot, and cleared when the slot is
+     * expired or cascaded, so it may stay set after a cancellation.
+     */
+    private long[] occupied = new long[numLevels];
+    private Wakeup overflow = new Wakeup(-1);
+    private Wakeup expiring = new Wakeup(-1);
+    /** The next tick whose bottom-level slot has not been expired. */
+    private long wheelTime;
+    private int numPending = 0;
+    private long expireNanos = 0;
+    private boolean tickless;
+    private int ticklessSlack;
+
+    private Wakeup[] records = new Wakeup[64];
+    private int numRecords = 0;
+    private Wakeup freeList = null;
+}
@@ -0,0 +1,188 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+/**
+ * A benchmark for the alarm's timing wheel. It sets a large number of
+ * concurrent timeouts at random delays, cancels some of them, and lets the
+ * rest expire, checking that no timeout fires early or after being
+ * cancelled. The same sequence of operations is then replayed on a binary
+ * heap of wakeup times, like the one the alarm used to keep, and the host
+ * time per operation of both is reported as CSV. The wheel's timeouts expire
+ * while the machine is simulated until the last of them; only the host time
+ * the alarm spends expiring them (see <tt>Alarm.getExpireNanos()</tt>) is
+ * counted.
+ *
+ * <p>
+ * Nachos cannot run more than a few hundred threads at once, so the pending
+ * wakeups are timeouts rather than sleeping threads; both are kept in the
+ * wheel the same way. The benchmark runs from <tt>ThreadedKernel.run()</tt>
+ * when <tt>AlarmBenchmark.run</tt> is <tt>true</tt>, and is configured with
+ * these <tt>nachos.conf</tt> keys:
+ *
+ * <ul>
+ * <li><tt>AlarmBenchmark.timeouts</tt>: the number of timeouts to set.
+ * <li><tt>AlarmBenchmark.maxDelay</tt>: the longest delay, in ticks.
+ * <li><tt>AlarmBenchmark.cancelPercent</tt>: the percentage of timeouts to
+ * cancel before they expire.
+ * </ul>
+ */
+public class AlarmBenchmark {
+    /**
+     * Run the benchmark as configured in <tt>nachos.conf</tt> and print the
+     * results.
+     */
+    public static void run() {
+	AlarmBenchmark benchmark =
+	    new AlarmBenchmark(Config.getInteger("AlarmBenchmark.timeouts", 100000),
+			       Config.getInteger("AlarmBenchmark.maxDelay", 200000),
+			       Config.getInteger("AlarmBenchmark.cancelPercent", 50));
+
+	System.out.print(benchmark.execute());
+    }
+
+    /**
+     * Allocate a new alarm benchmark.
+     *
+     * @param	numTimeouts	the number of timeouts to set.
+     * @param	maxDelay	the longest delay, in ticks.
+     * @param	cancelPercent	the percentage of timeouts to cancel.
+     */
+    public AlarmBenchmark(int numTimeouts, int maxDelay, int cancelPercent) {
+	Lib.assertTrue(numTimeouts > 0 && maxDelay > 0);
+	Lib.assertTrue(cancelPercent >= 0 && cancelPercent <= 100);
+
+	this.numTimeouts = numTimeouts;
+	this.maxDelay = maxDelay;
+	this.cancelPercent = cancelPercent;
+    }
+
+    /**
+     * Run the benchmark on the alarm and on a heap, and return the results as
+     * CSV, including a header line.
+     *
+     * @return	the benchmark results.
+     */
+    public String execute() {
+	delays = new long[numTimeouts];
+	for (int i=0; i<numTimeouts; i++)
+	    delays[i] = 1 + Lib.random(maxDelay);
+
+	return header + wheel() + heap();
+    }
+
+    private String wheel() {
+	Alarm alarm = ThreadedKernel.alarm;
+	long[] handles = new long[numTimeouts];
+	int numCancelled = 0;
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	long start = System.nanoTime();
+	for (int i=0; i<numTimeouts; i++)
+	    handles[i] = alarm.setTimeout(delays[i], new Check(delays[i]));
+	long insertTime = System.nanoTime() - start;
+
+	start = System.nanoTime();
+	for (int i=0; i<numTimeouts; i++) {
+	    if (cancelled(i)) {
+		Lib.assertTrue(alarm.cancelTimeout(handles[i]));
+		numCancelled++;
+	    }
+	}
+	long cancelTime = System.nanoTime() - start;
+
+	// a stale handle must not cancel anything
+	if (numCancelled > 0)
+	    Lib.assertTrue(!alarm.cancelTimeout(handles[0]));
+
+	Machine.interrupt().restore(intStatus);
+
+	long startNanos = alarm.getExpireNanos();
+	alarm.waitUntil(maxDelay + 1);
+	long expireTime = alarm.getExpireNanos() - startNanos;
+
+	Lib.assertTrue(numFired == numTimeouts - numCancelled);
+
+	return row("timing_wheel", numCancelled, insertTime, cancelTime,
+		   expireTime);
+    }
+
+    private String heap() {
+	PriorityQueue<long[]> heap =
+	    new PriorityQueue<long[]>(11, new Comparator<long[]>() {
+		    public int compare(long[] a, long[] b) {
+			return (a[0] < b[0]) ? -1 : (a[0] > b[0]) ? 1 : 0;
+		    }
+		});
+	long[][] entries = new long[numTimeouts][];
+	int numCancelled = 0;
+
+	long start = System.nanoTime();
+	for (int i=0; i<numTimeouts; i++) {
+	    entries[i] = new long[] { delays[i] };
+	    heap.add(entries[i]);
+	}
+	long insertTime = System.nanoTime() - start;
+
+	start = System.nanoTime();
+	for (int i=0; i<numTimeouts; i++) {
+	    if (cancelled(i)) {
+		heap.remove(entries[i]);
+		numCancelled++;
+	    }
+	}
+	long cancelTime = System.nanoTime() - start;
+
+	start = System.nanoTime();
+	while (heap.poll() != null)
+	    ;
+	long expireTime = System.nanoTime() - start;
+
+	return row("binary_heap", numCancelled, insertTime, cancelTime,
+		   expireTime);
+    }
+
+    private boolean cancelled(int i) {
+	return i % 100 < cancelPercent;
+    }
+
+    private String row(String structure, int numCancelled, long insertTime,
+		       long cancelTime, long expireTime) {
+	int numExpired = numTimeouts - numCancelled;
+
+	return structure + "," + numTimeouts + "," + numCancelled + ","
+	    + insertTime / numTimeouts + ","
+	    + (numCancelled == 0 ? 0 : cancelTime / numCancelled) + ","
+	    + (numExpired == 0 ? 0 : expireTime / numExpired) + "\n";
+    }
+
+    /**
+     * A timeout handler that checks it did not fire early.
+     */
+    private class Check implements Runnable {
+	Check(long delay) {
+	    due = Machine.timer().getTime() + delay;
+	}
+
+	public void run() {
+	    Lib.assertTrue(Machine.timer().getTime() >= due);
+	    numFired++;
+	}
+
+	private long due;
+    }
+
+    private static final String header =
+	"structure,timeouts,cancelled,insert_ns,cancel_ns,expire_ns\n";
+
+    private int numTimeouts;
+    private int maxDelay;
+    private int cancelPercent;
+
+    private long[] delays;
+    private int numFired = 0;
+}
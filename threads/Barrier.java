@@ -0,0 +1,119 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A <i>cyclic barrier</i> makes a fixed number of threads wait for each other
+ * at the end of a phase. Each thread calls <tt>await()</tt> when it is done
+ * with the current phase; the first <i>n</i>-1 threads wait, and the last one
+ * to arrive wakes them all up, after which the barrier is ready for the next
+ * phase.
+ *
+ * <p>
+ * The waiting threads are kept in a thread queue, and the last thread to
+ * arrive moves all of them to the ready queue in one step, with interrupts
+ * disabled, so a phase costs one wake-up per thread rather than a chain of
+ * joins.
+ */
+public class Barrier {
+    /**
+     * Allocate a new barrier.
+     *
+     * @param	parties	the number of threads that must call <tt>await()</tt>
+     *			to complete a phase. Must be positive.
+     */
+    public Barrier(int parties) {
+	Lib.assertTrue(parties > 0);
+
+	this.parties = parties;
+    }
+
+    /**
+     * Wait until <i>parties</i> threads, including this one, have called
+     * <tt>await()</tt> in the current phase.
+     *
+     * @return	<tt>true</tt> if this thread was the last to arrive and
+     *		completed the phase.
+     */
+    public boolean await() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	boolean last = (++arrived == parties);
+	if (last) {
+	    arrived = 0;
+	    phase++;
+
+	    KThread thread;
+	    while ((thread = waitQueue.nextThread()) != null)
+		thread.ready();
+	}
+	else {
+	    waitQueue.waitForAccess(KThread.currentThread());
+	    KThread.sleep();
+	}
+
+	Machine.interrupt().restore(intStatus);
+	return last;
+    }
+
+    /**
+     * Return the number of threads needed to complete a phase.
+     *
+     * @return	the number of parties.
+     */
+    public int getParties() {
+	return parties;
+    }
+
+    /**
+     * Return the number of phases completed so far.
+     *
+     * @return	the current phase number.
+     */
+    public int getPhase() {
+	return phase;
+    }
+
+    private static class PhaseTest implements Runnable {
+	PhaseTest(Barrier barrier, int[] arrivals, int phases) {
+	    this.barrier = barrier;
+	    this.arrivals = arrivals;
+	    this.phases = phases;
+	}
+
+	public void run() {
+	    for (int i=0; i<phases; i++) {
+		arrivals[i]++;
+		barrier.await();
+		// nobody leaves a phase until everybody has arrived
+		Lib.assertTrue(arrivals[i] == barrier.getParties());
+	    }
+	}
+
+	private Barrier barrier;
+	private int[] arrivals;
+	private int phases;
+    }
+
+    /**
+     * Test if this module is working.
+     */
+    public static void selfTest() {
+	Barrier barrier = new Barrier(5);
+	int[] arrivals = new int[3];
+
+	for (int i=0; i<4; i++) {
+	    new KThread(new PhaseTest(barrier, arrivals, arrivals.length))
+		.setName("phase").fork();
+	}
+
+	new PhaseTest(barrier, arrivals, arrivals.length).run();
+	Lib.assertTrue(barrier.getPhase() == arrivals.length);
+    }
+
+    private int parties;
+    private int arrived = 0;
+    private int phase = 0;
+    private ThreadQueue waitQueue =
+	ThreadedKernel.scheduler.newThreadQueue(false);
+}
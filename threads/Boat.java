@@ -1,6 +1,5 @@
 package nachos.threads;
 import nachos.ag.BoatGrader;
-import java.util.LinkedList;
 import nachos.machine.*;
 
 public class Boat
@@ -37,7 +36,7 @@ public class Boat
 	// Store the externally generated autograder in a class
 	// variable to be accessible by children.
 		bg = b;
-		LinkedList<KThread> threads = new LinkedList<KThread>();
+		final CountDownLatch finished = new CountDownLatch(adults + children);
 
 		System.out.println("began");
 		Scheduler s = new RoundRobinScheduler();
@@ -60,12 +59,14 @@ public class Boat
 		Runnable rc = new Runnable() {
 			public void run() {
 				ChildItinerary(/*lock, childrenOnOahu, childPair, adultsOnOahu, childOnMolokai, childrenCounted, pairReady, ridePair, finishRide, adultRow, boatOnMolokai, bg*/);
+				finished.countDown();
 			}
 		};
 
 		Runnable ra = new Runnable() {
 			public void run() {
 				AdultItinerary(/*lock, adultsOnOahu, childOnMolokai, childrenCounted, adultRow, boatOnMolokai, bg*/);
+				finished.countDown();
 			}
 		};
 
@@ -75,7 +76,6 @@ public class Boat
 			String name = "Child Thread " + c;
 			thread.setName(name);
 			thread.fork();
-			threads.add(thread);
 			System.out.println("child");
 		}
 		for(int a = 0; a < adults; a++) {
@@ -83,15 +83,13 @@ public class Boat
 			String name = "Adult Thread " + a;
 			thread.setName(name);
 			thread.fork();
-			threads.add(thread);
 			System.out.println("adult");
 		}
 
 		Machine.interrupt().restore(status);
 
-		while (!threads.isEmpty()) {
-			threads.removeFirst().join();
-		}
+		// wait for every child and adult at once instead of joining each
+		finished.await();
         // KThread t = new KThread(r);
         // t.setName("Sample Boat Thread");
         // t.fork();
@@ -0,0 +1,176 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A synchronized queue with a fixed capacity. Unlike <tt>SynchList</tt>, the
+ * objects are kept in a preallocated ring buffer, so adding an object does
+ * not allocate memory, and a full queue pushes back on the threads adding to
+ * it: <tt>add()</tt> waits for room, and <tt>offer()</tt> fails instead.
+ * <tt>drainTo()</tt> removes everything that is available under a single
+ * acquisition of the lock.
+ */
+public class BoundedSynchList {
+    /**
+     * Allocate a new bounded synchronized queue.
+     *
+     * @param	capacity	the maximum number of objects in the queue.
+     */
+    public BoundedSynchList(int capacity) {
+	Lib.assertTrue(capacity > 0);
+
+	buffer = new Object[capacity];
+	lock = new Lock();
+	listEmpty = new Condition(lock);
+	listFull = new Condition(lock);
+    }
+
+    /**
+     * Add the specified object to the end of the queue, blocking until the
+     * queue has room if necessary. If another thread is waiting to remove
+     * objects, it is woken up.
+     *
+     * @param	o	the object to add. Must not be <tt>null</tt>.
+     */
+    public void add(Object o) {
+	Lib.assertTrue(o != null);
+
+	lock.acquire();
+	while (count == buffer.length)
+	    listFull.sleep();
+	put(o);
+	lock.release();
+    }
+
+    /**
+     * Add the specified object to the end of the queue if it has room.
+     *
+     * @param	o	the object to add. Must not be <tt>null</tt>.
+     * @return	<tt>true</tt> if the object was added, or <tt>false</tt> if
+     *		the queue was full.
+     */
+    public boolean offer(Object o) {
+	Lib.assertTrue(o != null);
+
+	lock.acquire();
+	boolean added = (count < buffer.length);
+	if (added)
+	    put(o);
+	lock.release();
+
+	return added;
+    }
+
+    /**
+     * Remove an object from the front of the queue, blocking until the queue
+     * is non-empty if necessary.
+     *
+     * @return	the element removed from the front of the queue.
+     */
+    public Object removeFirst() {
+	Object o;
+
+	lock.acquire();
+	while (count == 0)
+	    listEmpty.sleep();
+	o = buffer[head];
+	buffer[head] = null;
+	head = (head + 1) % buffer.length;
+	count--;
+	listFull.wake();
+	lock.release();
+
+	return o;
+    }
+
+    /**
+     * Block until the queue is non-empty if necessary, then remove up to
+     * <i>max</i> objects from the front of the queue and store them at the
+     * start of <i>dst</i>, in order.
+     *
+     * @param	dst	the array in which to store the objects.
+     * @param	max	the maximum number of objects to remove. Must be
+     *			positive and no larger than the length of <i>dst</i>.
+     * @return	the number of objects removed.
+     */
+    public int drainTo(Object[] dst, int max) {
+	Lib.assertTrue(max > 0 && max <= dst.length);
+
+	lock.acquire();
+	while (count == 0)
+	    listEmpty.sleep();
+
+	int amount = Math.min(max, count);
+	for (int i=0; i<amount; i++) {
+	    dst[i] = buffer[head];
+	    buffer[head] = null;
+	    head = (head + 1) % buffer.length;
+	}
+	count -= amount;
+
+	for (int i=0; i<amount; i++)
+	    listFull.wake();
+	lock.release();
+
+	return amount;
+    }
+
+    /**
+     * Add an object to the end of the ring buffer, which must have room, and
+     * wake one thread waiting for an object. Called with the lock held.
+     */
+    private void put(Object o) {
+	buffer[(head + count) % buffer.length] = o;
+	count++;
+	listEmpty.wake();
+    }
+
+    private static class PingTest implements Runnable {
+	PingTest(BoundedSynchList ping, BoundedSynchList pong) {
+	    this.ping = ping;
+	    this.pong = pong;
+	}
+
+	public void run() {
+	    Object[] batch = new Object[4];
+	    for (int moved=0; moved<10; ) {
+		int amount = ping.drainTo(batch, batch.length);
+		for (int i=0; i<amount; i++)
+		    pong.add(batch[i]);
+		moved += amount;
+	    }
+	}
+
+	private BoundedSynchList ping;
+	private BoundedSynchList pong;
+    }
+
+    /**
+     * Test that this module is working.
+     */
+    public static void selfTest() {
+	BoundedSynchList ping = new BoundedSynchList(2);
+	BoundedSynchList pong = new BoundedSynchList(10);
+
+	new KThread(new PingTest(ping, pong)).setName("ping").fork();
+
+	Integer[] objects = new Integer[10];
+	for (int i=0; i<10; i++) {
+	    objects[i] = new Integer(i);
+	    ping.add(objects[i]);
+	}
+	for (int i=0; i<10; i++)
+	    Lib.assertTrue(pong.removeFirst() == objects[i]);
+
+	Lib.assertTrue(ping.offer(objects[0]) && ping.offer(objects[1]));
+	Lib.assertTrue(!ping.offer(objects[2]));
+    }
+
+    private Object[] buffer;
+    private int head = 0;
+    private int count = 0;
+
+    private Lock lock;
+    private Condition listEmpty;
+    private Condition listFull;
+}
@@ -0,0 +1,193 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A <i>buffered communicator</i> is a channel through which threads exchange
+ * 32-bit words without meeting each other. Words are kept in a bounded ring
+ * buffer: a speaker only waits while the buffer is full, and a listener only
+ * waits while it is empty.
+ *
+ * <p>
+ * Unlike <tt>Communicator</tt>, which needs a rendezvous and at least two
+ * context switches for every word, a buffered communicator can transfer a
+ * whole batch of words each time a thread gets the lock, so producers and
+ * consumers only switch when the buffer fills up or runs dry. Words spoken
+ * by one thread are received in order, but the words of a batch may be
+ * interleaved with other speakers' words once the batch is larger than the
+ * space left in the buffer.
+ */
+public class BufferedCommunicator {
+    /**
+     * Allocate a new buffered communicator.
+     *
+     * @param	capacity	the number of words the buffer can hold.
+     */
+    public BufferedCommunicator(int capacity) {
+	Lib.assertTrue(capacity > 0);
+
+	buffer = new int[capacity];
+
+	lock = new Lock();
+	notFull = new Condition2(lock);
+	notEmpty = new Condition2(lock);
+    }
+
+    /**
+     * Add <i>word</i> to the buffer, waiting while the buffer is full.
+     *
+     * @param	word	the integer to transfer.
+     */
+    public void speak(int word) {
+	lock.acquire();
+
+	while (count == buffer.length)
+	    notFull.sleep();
+
+	buffer[(head + count) % buffer.length] = word;
+	count++;
+
+	notEmpty.wakeAll();
+	lock.release();
+    }
+
+    /**
+     * Add <i>len</i> words from <i>words</i>, starting at <i>off</i>, to the
+     * buffer. Copies as many words as fit each time the buffer has room, and
+     * does not return until all of them have been added.
+     *
+     * @param	words	the array containing the words to transfer.
+     * @param	off	the index of the first word to transfer.
+     * @param	len	the number of words to transfer.
+     */
+    public void speak(int[] words, int off, int len) {
+	Lib.assertTrue(off >= 0 && len >= 0 && off+len <= words.length);
+
+	lock.acquire();
+
+	while (len > 0) {
+	    while (count == buffer.length)
+		notFull.sleep();
+
+	    int tail = (head + count) % buffer.length;
+	    int amount = Math.min(len, buffer.length - count);
+	    int first = Math.min(amount, buffer.length - tail);
+
+	    System.arraycopy(words, off, buffer, tail, first);
+	    System.arraycopy(words, off+first, buffer, 0, amount-first);
+
+	    count += amount;
+	    off += amount;
+	    len -= amount;
+
+	    notEmpty.wakeAll();
+	}
+
+	lock.release();
+    }
+
+    /**
+     * Remove the next word from the buffer, waiting while the buffer is
+     * empty.
+     *
+     * @return	the integer transferred.
+     */
+    public int listen() {
+	lock.acquire();
+
+	while (count == 0)
+	    notEmpty.sleep();
+
+	int word = buffer[head];
+	head = (head + 1) % buffer.length;
+	count--;
+
+	notFull.wakeAll();
+	lock.release();
+
+	return word;
+    }
+
+    /**
+     * Wait until the buffer holds at least one word, then remove as many
+     * words as are available, up to the length of <i>buf</i>, and store them
+     * at the start of <i>buf</i>.
+     *
+     * @param	buf	the array in which to store the words.
+     * @return	the number of words transferred, which is at least 1 unless
+     *		<i>buf</i> is empty.
+     */
+    public int listen(int[] buf) {
+	if (buf.length == 0)
+	    return 0;
+
+	lock.acquire();
+
+	while (count == 0)
+	    notEmpty.sleep();
+
+	int amount = Math.min(buf.length, count);
+	int first = Math.min(amount, buffer.length - head);
+
+	System.arraycopy(buffer, head, buf, 0, first);
+	System.arraycopy(buffer, 0, buf, first, amount-first);
+
+	head = (head + amount) % buffer.length;
+	count -= amount;
+
+	notFull.wakeAll();
+	lock.release();
+
+	return amount;
+    }
+
+    private static class SpeakTest implements Runnable {
+	SpeakTest(BufferedCommunicator channel, int words) {
+	    this.channel = channel;
+	    this.words = words;
+	}
+
+	public void run() {
+	    int[] batch = new int[7];
+	    for (int i=0; i<words; i+=batch.length) {
+		int len = Math.min(batch.length, words-i);
+		for (int j=0; j<len; j++)
+		    batch[j] = i+j;
+		channel.speak(batch, 0, len);
+	    }
+	}
+
+	private BufferedCommunicator channel;
+	private int words;
+    }
+
+    /**
+     * Test if this module is working. Sends words in batches through a buffer
+     * smaller than a batch, and checks that they arrive in order.
+     */
+    public static void selfTest() {
+	BufferedCommunicator channel = new BufferedCommunicator(5);
+
+	new KThread(new SpeakTest(channel, 100)).setName("speaker").fork();
+
+	int[] buf = new int[3];
+	int next = 0;
+	while (next < 100) {
+	    int amount = channel.listen(buf);
+	    Lib.assertTrue(amount > 0 && amount <= buf.length);
+	    for (int i=0; i<amount; i++)
+		Lib.assertTrue(buf[i] == next++);
+	}
+
+	channel.speak(42);
+	Lib.assertTrue(channel.listen() == 42);
+    }
+
+    private int[] buffer;
+    private int head = 0;
+    private int count = 0;
+
+    private Lock lock;
+    private Condition2 notFull;
+    private Condition2 notEmpty;
+}
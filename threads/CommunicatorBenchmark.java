@@ -0,0 +1,154 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A producer/consumer benchmark comparing <tt>Communicator</tt> with
+ * <tt>BufferedCommunicator</tt>. A producer thread sends a number of words to
+ * a consumer thread, first one word per rendezvous through a
+ * <tt>Communicator</tt>, then in batches through a
+ * <tt>BufferedCommunicator</tt>, and one CSV row is reported for each.
+ *
+ * <p>
+ * The benchmark runs from <tt>ThreadedKernel.run()</tt> when
+ * <tt>CommunicatorBenchmark.run</tt> is <tt>true</tt>, and is configured with
+ * these <tt>nachos.conf</tt> keys:
+ *
+ * <ul>
+ * <li><tt>CommunicatorBenchmark.words</tt>: the number of words to send.
+ * <li><tt>CommunicatorBenchmark.capacity</tt>: the buffer capacity of the
+ * buffered communicator.
+ * <li><tt>CommunicatorBenchmark.batch</tt>: the number of words the producer
+ * and consumer pass to each bulk <tt>speak()</tt> and <tt>listen()</tt>.
+ * </ul>
+ */
+public class CommunicatorBenchmark {
+    /**
+     * Run the benchmark as configured in <tt>nachos.conf</tt> and print the
+     * results.
+     */
+    public static void run() {
+	int words = Config.getInteger("CommunicatorBenchmark.words", 1000000);
+	int capacity = Config.getInteger("CommunicatorBenchmark.capacity", 4096);
+	int batch = Config.getInteger("CommunicatorBenchmark.batch", 1024);
+
+	System.out.print(header);
+	System.out.print(rendezvous(words));
+	System.out.print(buffered(words, capacity, batch));
+    }
+
+    /**
+     * Send the specified number of words through a <tt>Communicator</tt> and
+     * return the result as a CSV row.
+     *
+     * @param	words	the number of words to send.
+     * @return	the benchmark result.
+     */
+    public static String rendezvous(final int words) {
+	final Communicator channel = new Communicator();
+	Semaphore done = new Semaphore(0);
+
+	Measurement measurement = new Measurement();
+
+	new KThread(new Finisher(new Runnable() {
+		public void run() {
+		    for (int i=0; i<words; i++)
+			channel.speak(i);
+		}
+	    }, done)).setName("producer").fork();
+
+	for (int i=0; i<words; i++)
+	    channel.listen();
+	done.P();
+
+	return measurement.row("rendezvous", words, 1, 1);
+    }
+
+    /**
+     * Send the specified number of words through a
+     * <tt>BufferedCommunicator</tt> in batches and return the result as a CSV
+     * row.
+     *
+     * @param	words	the number of words to send.
+     * @param	capacity	the capacity of the buffer.
+     * @param	batch	the number of words per bulk transfer.
+     * @return	the benchmark result.
+     */
+    public static String buffered(final int words, int capacity,
+				  final int batch) {
+	Lib.assertTrue(batch > 0);
+
+	final BufferedCommunicator channel = new BufferedCommunicator(capacity);
+	Semaphore done = new Semaphore(0);
+
+	Measurement measurement = new Measurement();
+
+	new KThread(new Finisher(new Runnable() {
+		public void run() {
+		    int[] buf = new int[batch];
+		    for (int i=0; i<words; i+=batch) {
+			int len = Math.min(batch, words-i);
+			for (int j=0; j<len; j++)
+			    buf[j] = i+j;
+			channel.speak(buf, 0, len);
+		    }
+		}
+	    }, done)).setName("producer").fork();
+
+	int[] buf = new int[batch];
+	for (int next=0; next<words; ) {
+	    int amount = channel.listen(buf);
+	    for (int i=0; i<amount; i++)
+		Lib.assertTrue(buf[i] == next++);
+	}
+	done.P();
+
+	return measurement.row("buffered", words, capacity, batch);
+    }
+
+    /**
+     * Runs a target and then signals a semaphore.
+     */
+    private static class Finisher implements Runnable {
+	Finisher(Runnable target, Semaphore done) {
+	    this.target = target;
+	    this.done = done;
+	}
+
+	public void run() {
+	    target.run();
+	    done.V();
+	}
+
+	private Runnable target;
+	private Semaphore done;
+    }
+
+    /**
+     * Records the simulated time, host time, and context switches at the
+     * start of a run.
+     */
+    private static class Measurement {
+	Measurement() {
+	    startTime = Machine.timer().getTime();
+	    startMillis = System.currentTimeMillis();
+	    startSwitches = Machine.stats().numContextSwitches;
+	}
+
+	String row(String channel, int words, int capacity, int batch) {
+	    long elapsed = Machine.timer().getTime() - startTime;
+	    long millis = System.currentTimeMillis() - startMillis;
+	    long switches = Machine.stats().numContextSwitches - startSwitches;
+
+	    return channel + "," + words + "," + capacity + "," + batch + ","
+		+ elapsed + "," + millis + "," + switches + ","
+		+ (millis == 0 ? 0 : words / millis) + "\n";
+	}
+
+	private long startTime, startMillis, startSwitches;
+    }
+
+    private static final String header =
+	"channel,words,capacity,batch,elapsed_ticks,host_millis,"
+	+ "context_switches,words_per_host_milli\n";
+}
@@ -2,8 +2,6 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.LinkedList;
-
 /**
  * An implementation of condition variables built upon semaphores.
  *
@@ -60,8 +58,6 @@ public class Condition {
      */
     public Condition(Lock conditionLock) {
 	this.conditionLock = conditionLock;
-
-	waitQueue = new LinkedList<Semaphore>();
     }
 
     /**
@@ -71,19 +67,30 @@ public class Condition {
      * automatically reacquire the lock before <tt>sleep()</tt> returns.
      *
      * <p>
-     * This implementation uses semaphores to implement this, by allocating a
-     * semaphore for each waiting thread. The waker will <tt>V()</tt> this
+     * This implementation uses semaphores to implement this, by giving each
+     * waiting thread a semaphore. The waker will <tt>V()</tt> this
      * semaphore, so thre is no chance the sleeper will miss the wake-up, even
-     * though the lock is released before caling <tt>P()</tt>.
+     * though the lock is released before caling <tt>P()</tt>. Each thread
+     * allocates its semaphore once and reuses it, and the waiting threads are
+     * linked through <tt>KThread.conditionNext</tt>, so sleeping does not
+     * allocate memory.
      */
     public void sleep() {
 	Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 
-	Semaphore waiter = new Semaphore(0);
-	waitQueue.add(waiter);
+	KThread thread = KThread.currentThread();
+	if (thread.conditionWaiter == null)
+	    thread.conditionWaiter = new Semaphore(0);
+
+	Lib.assertTrue(thread.conditionNext == null);
+	if (last == null)
+	    first = thread;
+	else
+	    last.conditionNext = thread;
+	last = thread;
 
 	conditionLock.release();
-	waiter.P();
+	thread.conditionWaiter.P();
 	conditionLock.acquire();	
     }
 
@@ -94,8 +101,14 @@ public class Condition {
     public void wake() {
 	Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 
-	if (!waitQueue.isEmpty())
-	    ((Semaphore) waitQueue.removeFirst()).V();
+	KThread thread = first;
+	if (thread != null) {
+	    first = thread.conditionNext;
+	    if (first == null)
+		last = null;
+	    thread.conditionNext = null;
+	    thread.conditionWaiter.V();
+	}
     }
 
     /**
@@ -105,10 +118,23 @@ public class Condition {
     public void wakeAll() {
 	Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 
-	while (!waitQueue.isEmpty())
-	    wake();
+	// detach the whole list at once, then wake its threads in order
+	KThread thread = first;
+	first = last = null;
+
+	while (thread != null) {
+	    KThread next = thread.conditionNext;
+	    thread.conditionNext = null;
+	    thread.conditionWaiter.V();
+	    thread = next;
+	}
     }
 
     private Lock conditionLock;
-    private LinkedList<Semaphore> waitQueue;
+    /**
+     * The threads waiting on this condition variable, oldest first, linked
+     * through <tt>KThread.conditionNext</tt>.
+     */
+    private KThread first = null;
+    private KThread last = null;
 }
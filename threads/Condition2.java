@@ -1,5 +1,5 @@
 package nachos.threads;
-import java.util.*;
+
 import nachos.machine.*;
 
 /**
@@ -7,7 +7,9 @@ import nachos.machine.*;
  * synchronization.
  *
  * <p>
- * You must implement this.
+ * Waiting threads are linked through <tt>KThread.conditionNext</tt>, so
+ * sleeping on a condition variable does not allocate memory, and
+ * <tt>wakeAll()</tt> detaches the whole list of waiters in one step.
  *
  * @see	nachos.threads.Condition
  */
@@ -30,16 +32,24 @@ public class Condition2 {
      * current thread must hold the associated lock. The thread will
      * automatically re-acquire the lock before <tt>sleep()</tt> returns.
      */
-    LinkedList<KThread> waiting_queue = new LinkedList<KThread>(); // makes new queue call the waiting_queue
-    
     public void sleep() {
 	Lib.assertTrue(conditionLock.isHeldByCurrentThread());
-	Machine.interrupt().disable();
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+	Lib.assertTrue(thread.conditionNext == null);
+	if (last == null)
+	    first = thread;
+	else
+	    last.conditionNext = thread;
+	last = thread;
+
 	conditionLock.release();
-	waiting_queue.add(KThread.currentThread()); // calling sleep(), will put this thread onto the waiting_queue
-	KThread.currentThread().sleep(); // goes to sleep
+	KThread.sleep();
+
+	Machine.interrupt().restore(intStatus);
 	conditionLock.acquire();
-	Machine.interrupt().enable();		
     }
 
     /**
@@ -48,13 +58,19 @@ public class Condition2 {
      */
     public void wake() {
 	Lib.assertTrue(conditionLock.isHeldByCurrentThread());
-	Machine.interrupt().disable();
-		KThread temp; // temp thread will be the next thread on the waiting_queue
-		if((temp = waiting_queue.poll()) != null) //check if sleep_queue is empty or not
-		{
-			temp.ready(); //if not null, put it on the ready queue
-		}
-	Machine.interrupt().enable();
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = first;
+	if (thread != null) {
+	    first = thread.conditionNext;
+	    if (first == null)
+		last = null;
+	    thread.conditionNext = null;
+	    thread.ready();
+	}
+
+	Machine.interrupt().restore(intStatus);
     }
 
     /**
@@ -63,14 +79,28 @@ public class Condition2 {
      */
     public void wakeAll() {
 	Lib.assertTrue(conditionLock.isHeldByCurrentThread());
-	Machine.interrupt().disable();
-		KThread temp; // temp thread will be the next thread on the waiting_queue
-		while((temp = waiting_queue.poll()) != null) //"continue" checking if waiting_queue is empty or not
-		{
-			temp.ready(); //if not null, put it on the ready queue
-		}
-	Machine.interrupt().enable();
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	// detach the whole list at once, then make its threads ready in order
+	KThread thread = first;
+	first = last = null;
+
+	while (thread != null) {
+	    KThread next = thread.conditionNext;
+	    thread.conditionNext = null;
+	    thread.ready();
+	    thread = next;
+	}
+
+	Machine.interrupt().restore(intStatus);
     }
 
     private Lock conditionLock;
-    }
+    /**
+     * The threads waiting on this condition variable, oldest first, linked
+     * through <tt>KThread.conditionNext</tt>.
+     */
+    private KThread first = null;
+    private KThread last = null;
+}
@@ -0,0 +1,117 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A <i>countdown latch</i> lets threads wait until a number of events have
+ * happened. The latch starts with a count; <tt>countDown()</tt> decrements
+ * it, and <tt>await()</tt> waits until it reaches zero. Once the count is
+ * zero, the latch stays open and <tt>await()</tt> returns immediately.
+ *
+ * <p>
+ * A latch replaces a series of joins: instead of joining each of <i>n</i>
+ * threads in turn, the waiting thread creates a latch with a count of
+ * <i>n</i>, has each thread count down when it is done, and waits once. The
+ * waiting threads are kept in a thread queue, and when the count reaches
+ * zero, all of them are moved to the ready queue in one step, with
+ * interrupts disabled.
+ */
+public class CountDownLatch {
+    /**
+     * Allocate a new countdown latch.
+     *
+     * @param	count	the number of <tt>countDown()</tt> calls needed to open
+     *			the latch.
+     */
+    public CountDownLatch(int count) {
+	Lib.assertTrue(count >= 0);
+
+	this.count = count;
+    }
+
+    /**
+     * Decrement the count of this latch, and if it reaches zero, wake up all
+     * threads waiting in <tt>await()</tt>. Does nothing if the latch is
+     * already open.
+     */
+    public void countDown() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	if (count > 0 && --count == 0) {
+	    KThread thread;
+	    while ((thread = waitQueue.nextThread()) != null)
+		thread.ready();
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Wait until the count of this latch reaches zero.
+     */
+    public void await() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	if (count > 0) {
+	    waitQueue.waitForAccess(KThread.currentThread());
+	    KThread.sleep();
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Return the current count of this latch.
+     *
+     * @return	the number of <tt>countDown()</tt> calls still needed to open
+     *		the latch.
+     */
+    public int getCount() {
+	return count;
+    }
+
+    private static class Worker implements Runnable {
+	Worker(CountDownLatch start, CountDownLatch done, int[] finished) {
+	    this.start = start;
+	    this.done = done;
+	    this.finished = finished;
+	}
+
+	public void run() {
+	    start.await();
+	    finished[0]++;
+	    done.countDown();
+	}
+
+	private CountDownLatch start, done;
+	private int[] finished;
+    }
+
+    /**
+     * Test if this module is working.
+     */
+    public static void selfTest() {
+	CountDownLatch start = new CountDownLatch(1);
+	CountDownLatch done = new CountDownLatch(10);
+	int[] finished = new int[1];
+
+	for (int i=0; i<10; i++)
+	    new KThread(new Worker(start, done, finished)).setName("worker").fork();
+
+	KThread.yield();
+	Lib.assertTrue(finished[0] == 0);
+
+	start.countDown();
+	done.await();
+	Lib.assertTrue(finished[0] == 10 && done.getCount() == 0);
+
+	// an open latch stays open
+	done.countDown();
+	done.await();
+	Lib.assertTrue(done.getCount() == 0);
+    }
+
+    private int count;
+    private ThreadQueue waitQueue =
+	ThreadedKernel.scheduler.newThreadQueue(false);
+}
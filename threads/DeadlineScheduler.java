@@ -0,0 +1,288 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.PriorityQueue;
+import java.util.Comparator;
+import java.util.Iterator;
+
+/**
+ * A scheduler that always chooses the waiting thread with the earliest
+ * deadline.
+ *
+ * <p>
+ * A thread is given a deadline with <tt>KThread.setDeadline()</tt>, which
+ * names a relative deadline and the processor time (the <i>budget</i>) the
+ * thread needs before that deadline. Each time the thread is made ready by
+ * another thread (it is forked, or woken after blocking), a new activation
+ * begins and its absolute deadline is the current time plus the relative
+ * deadline. A thread that yields or is preempted keeps the deadline of its
+ * current activation.
+ *
+ * <p>
+ * Waiting threads are kept in a heap ordered by absolute deadline. Threads
+ * without a deadline are ordered after all threads with one, and among
+ * themselves are served first-come first-serve.
+ *
+ * <p>
+ * Admission control keeps the sum of <i>budget</i> / <i>relativeDeadline</i>
+ * over all admitted threads at or below 1, which is the condition under which
+ * earliest-deadline-first scheduling meets every deadline on one processor.
+ * Refused deadlines and activations that end after their deadline are counted
+ * in <tt>Stats</tt>.
+ */
+public class DeadlineScheduler extends Scheduler {
+    /**
+     * Allocate a new deadline scheduler.
+     */
+    public DeadlineScheduler() {
+    }
+
+    /**
+     * Allocate a new deadline thread queue.
+     *
+     * @param	transferPriority	ignored. Deadline schedulers do not
+     *					donate deadlines.
+     * @return	a new deadline thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new DeadlineQueue();
+    }
+
+    /**
+     * Set the deadline of the specified thread, if admission control allows
+     * it. The thread's previous reservation, if any, is given back first, so
+     * a thread may change its deadline at any time.
+     *
+     * @param	thread	the thread to set the deadline of.
+     * @param	relativeDeadline	the deadline of each activation, or 0.
+     * @param	budget	the processor time needed by each activation.
+     * @return	<tt>true</tt> if the deadline was admitted.
+     */
+    public boolean setDeadline(KThread thread, long relativeDeadline,
+			       long budget) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	ThreadState state = getThreadState(thread);
+
+	if (relativeDeadline == 0) {
+	    utilization -= state.utilization;
+	    state.utilization = 0;
+	    state.relativeDeadline = 0;
+	    return true;
+	}
+
+	Lib.assertTrue(relativeDeadline > 0 && budget >= 0);
+
+	long requested = budget * utilizationLimit / relativeDeadline;
+	if (budget > relativeDeadline ||
+	    utilization - state.utilization + requested > utilizationLimit) {
+	    Machine.stats().numDeadlineRejections++;
+	    return false;
+	}
+
+	utilization += requested - state.utilization;
+	state.utilization = requested;
+	state.relativeDeadline = relativeDeadline;
+	return true;
+    }
+
+    /**
+     * Count a deadline miss if the specified thread is still running after
+     * the deadline of its current activation.
+     *
+     * @param	thread	the thread that was running.
+     * @param	ticks	the number of ticks it ran.
+     */
+    public void chargeRunTime(KThread thread, long ticks) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	getThreadState(thread).checkDeadline();
+    }
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected ThreadState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new ThreadState(thread);
+
+	return (ThreadState) thread.schedulingState;
+    }
+
+    /**
+     * The fixed-point value representing a utilization of 1.
+     */
+    private static final long utilizationLimit = 1000000;
+
+    /**
+     * The total utilization of all admitted threads, in units of
+     * <tt>1/utilizationLimit</tt>.
+     */
+    private long utilization = 0;
+
+    /**
+     * A <tt>ThreadQueue</tt> that sorts threads by absolute deadline.
+     */
+    protected class DeadlineQueue extends ThreadQueue {
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState state = getThreadState(thread);
+
+	    // a thread woken by someone else starts a new activation
+	    if (thread != KThread.currentThread())
+		state.release();
+
+	    state.sequence = numEnqueued++;
+	    waitQueue.add(state);
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState state = waitQueue.poll();
+	    if (state == null)
+		return null;
+
+	    state.checkDeadline();
+	    return state.thread;
+	}
+
+	/**
+	 * The specified thread has received exclusive access, without using
+	 * <tt>waitForAccess()</tt> or <tt>nextThread()</tt>. Assert that no
+	 * threads are waiting for access.
+	 */
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    Lib.assertTrue(waitQueue.isEmpty());
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (Iterator<ThreadState> i=waitQueue.iterator(); i.hasNext(); ) {
+		ThreadState state = i.next();
+		System.out.print(state.thread + " (" + state.absoluteDeadline
+				 + ") ");
+	    }
+	}
+
+	private PriorityQueue<ThreadState> waitQueue =
+	    new PriorityQueue<ThreadState>(11, new Comparator<ThreadState>() {
+		    public int compare(ThreadState a, ThreadState b) {
+			if (a.absoluteDeadline != b.absoluteDeadline)
+			    return (a.absoluteDeadline < b.absoluteDeadline)
+				? -1 : 1;
+			else if (a.sequence != b.sequence)
+			    return (a.sequence < b.sequence) ? -1 : 1;
+			else
+			    return 0;
+		    }
+		});
+	private long numEnqueued = 0;
+    }
+
+    /**
+     * The scheduling state of a thread: its deadline reservation and the
+     * absolute deadline of its current activation.
+     *
+     * @see	nachos.threads.KThread#schedulingState
+     */
+    protected class ThreadState {
+	/**
+	 * Allocate a new <tt>ThreadState</tt> object and associate it with the
+	 * specified thread.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public ThreadState(KThread thread) {
+	    this.thread = thread;
+	}
+
+	/**
+	 * Begin a new activation of the associated thread.
+	 */
+	void release() {
+	    if (relativeDeadline == 0) {
+		absoluteDeadline = Long.MAX_VALUE;
+	    }
+	    else {
+		absoluteDeadline = Machine.timer().getTime() + relativeDeadline;
+		missed = false;
+	    }
+	}
+
+	/**
+	 * Count a miss if the current activation is past its deadline and has
+	 * not already been counted.
+	 */
+	void checkDeadline() {
+	    if (!missed && absoluteDeadline != Long.MAX_VALUE &&
+		Machine.timer().getTime() > absoluteDeadline) {
+		missed = true;
+		Machine.stats().numDeadlineMisses++;
+	    }
+	}
+
+	/** The thread with which this object is associated. */
+	protected KThread thread;
+	/** The relative deadline of each activation, or 0 for none. */
+	protected long relativeDeadline = 0;
+	/** The utilization reserved for this thread by admission control. */
+	protected long utilization = 0;
+	/** The absolute deadline of the current activation. */
+	protected long absoluteDeadline = Long.MAX_VALUE;
+	/** <tt>true</tt> if the current activation has missed its deadline. */
+	protected boolean missed = false;
+	/** Breaks ties between threads with equal deadlines. */
+	protected long sequence = 0;
+    }
+
+    private static class PeriodicTest implements Runnable {
+	PeriodicTest(long period, long budget, Semaphore done) {
+	    this.period = period;
+	    this.budget = budget;
+	    this.done = done;
+	}
+
+	public void run() {
+	    Lib.assertTrue(KThread.currentThread().setDeadline(period, budget));
+
+	    for (int i=0; i<5; i++)
+		ThreadedKernel.alarm.waitUntil(period);
+
+	    done.V();
+	}
+
+	private long period, budget;
+	private Semaphore done;
+    }
+
+    /**
+     * Tests whether this module is working. Admits two periodic threads,
+     * checks that a third one that would overload the processor is refused,
+     * and runs the admitted threads to completion.
+     */
+    public static void selfTest() {
+	if (!(ThreadedKernel.scheduler instanceof DeadlineScheduler))
+	    return;
+
+	Semaphore done = new Semaphore(0);
+
+	new KThread(new PeriodicTest(2000, 500, done)).setName("edf1").fork();
+	new KThread(new PeriodicTest(4000, 1000, done)).setName("edf2").fork();
+	KThread.yield();
+
+	KThread overload = new KThread();
+	Lib.assertTrue(!overload.setDeadline(1000, 600));
+
+	done.P();
+	done.P();
+    }
+}
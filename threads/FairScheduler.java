@@ -0,0 +1,351 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.TreeSet;
+import java.util.Comparator;
+import java.util.Iterator;
+
+/**
+ * A scheduler that gives every thread a fair share of the processor, in the
+ * style of the Linux completely fair scheduler.
+ *
+ * <p>
+ * Every thread accumulates <i>virtual runtime</i>: the number of ticks it has
+ * actually spent running, scaled by a weight derived from its priority. The
+ * next thread to receive access is always the waiting thread with the
+ * smallest virtual runtime, so a thread that has had less than its share of
+ * the processor runs before one that has had more, no matter how often
+ * either of them yields.
+ *
+ * <p>
+ * Priorities use the same range as <tt>PriorityScheduler</tt>, but act like
+ * Unix nice values: each step up gives a thread roughly 25% more processor
+ * time than the step below it, instead of absolute precedence. Priority is
+ * not donated.
+ *
+ * <p>
+ * Waiting threads are kept in a balanced tree ordered by virtual runtime, so
+ * enqueueing and choosing the next thread both take logarithmic time. With
+ * several virtual processors, each run queue is a separate tree, so, as in
+ * Linux, fairness holds within each processor's run queue rather than
+ * across all of them.
+ */
+public class FairScheduler extends Scheduler {
+    /**
+     * Allocate a new fair scheduler.
+     */
+    public FairScheduler() {
+    }
+
+    /**
+     * Allocate a new fair thread queue.
+     *
+     * @param	transferPriority	ignored. Fair schedulers do not donate
+     *					priority.
+     * @return	a new fair thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new FairQueue();
+    }
+
+    public int getPriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return getThreadState(thread).priority;
+    }
+
+    public int getEffectivePriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return getThreadState(thread).priority;
+    }
+
+    public void setPriority(KThread thread, int priority) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	Lib.assertTrue(priority >= PriorityScheduler.priorityMinimum &&
+		       priority <= PriorityScheduler.priorityMaximum);
+
+	getThreadState(thread).priority = priority;
+    }
+
+    public boolean increasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	if (priority == PriorityScheduler.priorityMaximum) {
+	    Machine.interrupt().restore(intStatus);
+	    return false;
+	}
+
+	setPriority(thread, priority + 1);
+
+	Machine.interrupt().restore(intStatus);
+	return true;
+    }
+
+    public boolean decreasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	if (priority == PriorityScheduler.priorityMinimum) {
+	    Machine.interrupt().restore(intStatus);
+	    return false;
+	}
+
+	setPriority(thread, priority - 1);
+
+	Machine.interrupt().restore(intStatus);
+	return true;
+    }
+
+    /**
+     * Charge the specified thread for the time it just spent running.
+     * <tt>KThread</tt> charges a yielding thread before putting it back in
+     * the ready queue, so it is queued under its new virtual runtime. If the
+     * thread is already waiting in a queue (as it is when the last few ticks
+     * before a context switch are charged), it is re-sorted.
+     *
+     * @param	thread	the thread that was running.
+     * @param	ticks	the number of ticks it ran.
+     */
+    public void chargeRunTime(KThread thread, long ticks) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	ThreadState state = getThreadState(thread);
+	FairQueue queue = state.waitQueue;
+
+	if (queue != null)
+	    queue.waitQueue.remove(state);
+
+	state.vruntime += ticks * weights[PriorityScheduler.priorityDefault]
+	    / weights[state.priority];
+
+	if (queue != null)
+	    queue.waitQueue.add(state);
+    }
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected ThreadState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new ThreadState(thread);
+
+	return (ThreadState) thread.schedulingState;
+    }
+
+    /**
+     * The weight of each priority level, taken from the Linux nice-to-weight
+     * table so that the default priority has a weight of 1024.
+     */
+    private static final int[] weights = {
+	820, 1024, 1277, 1586, 1991, 2501, 3121, 3906
+    };
+
+    /**
+     * The smallest virtual runtime of any thread chosen to run so far. Threads
+     * that begin waiting are brought up to at least this value, so a thread
+     * that slept for a long time cannot monopolize the processor when it
+     * wakes.
+     */
+    private long minVruntime = 0;
+
+    /**
+     * A <tt>ThreadQueue</tt> that sorts threads by virtual runtime.
+     */
+    protected class FairQueue extends ThreadQueue {
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState state = getThreadState(thread);
+	    Lib.assertTrue(state.waitQueue == null);
+
+	    state.vruntime = Math.max(state.vruntime, minVruntime);
+	    state.sequence = numEnqueued++;
+	    state.waitQueue = this;
+	    waitQueue.add(state);
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    if (waitQueue.isEmpty())
+		return null;
+
+	    Stats stats = Machine.stats();
+	    stats.maxVruntimeLag =
+		Math.max(stats.maxVruntimeLag,
+			 waitQueue.last().vruntime - waitQueue.first().vruntime);
+
+	    ThreadState state = waitQueue.pollFirst();
+	    state.waitQueue = null;
+	    minVruntime = Math.max(minVruntime, state.vruntime);
+
+	    return state.thread;
+	}
+
+	/**
+	 * The specified thread has received exclusive access, without using
+	 * <tt>waitForAccess()</tt> or <tt>nextThread()</tt>. Assert that no
+	 * threads are waiting for access.
+	 */
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    Lib.assertTrue(waitQueue.isEmpty());
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (Iterator<ThreadState> i=waitQueue.iterator(); i.hasNext(); ) {
+		ThreadState state = i.next();
+		System.out.print(state.thread + " (" + state.vruntime + ") ");
+	    }
+	}
+
+	private TreeSet<ThreadState> waitQueue =
+	    new TreeSet<ThreadState>(new Comparator<ThreadState>() {
+		    public int compare(ThreadState a, ThreadState b) {
+			if (a.vruntime != b.vruntime)
+			    return (a.vruntime < b.vruntime) ? -1 : 1;
+			else if (a.sequence != b.sequence)
+			    return (a.sequence < b.sequence) ? -1 : 1;
+			else
+			    return 0;
+		    }
+		});
+	private long numEnqueued = 0;
+    }
+
+    /**
+     * The scheduling state of a thread: its priority, its virtual runtime,
+     * and the queue it is waiting in, if any.
+     *
+     * @see	nachos.threads.KThread#schedulingState
+     */
+    protected class ThreadState {
+	/**
+	 * Allocate a new <tt>ThreadState</tt> object and associate it with the
+	 * specified thread.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public ThreadState(KThread thread) {
+	    this.thread = thread;
+	}
+
+	/** The thread with which this object is associated. */
+	protected KThread thread;
+	/** The priority of the associated thread. */
+	protected int priority = PriorityScheduler.priorityDefault;
+	/** The weighted number of ticks the associated thread has run. */
+	protected long vruntime = 0;
+	/** Breaks ties between threads with equal virtual runtime. */
+	protected long sequence = 0;
+	/** The queue the associated thread is waiting in, or <tt>null</tt>. */
+	protected FairQueue waitQueue = null;
+    }
+
+    private static class BurnTest implements Runnable {
+	BurnTest(int which, long[] ticks, boolean[] stop, Semaphore done) {
+	    this.which = which;
+	    this.ticks = ticks;
+	    this.stop = stop;
+	    this.done = done;
+	}
+
+	/**
+	 * Burn simulated time until told to stop, counting the ticks this
+	 * thread ran. Each time interrupts are enabled, the clock advances by
+	 * <tt>Stats.KernelTick</tt>, and the timer may preempt the thread.
+	 */
+	public void run() {
+	    while (!stop[0]) {
+		boolean intStatus = Machine.interrupt().disable();
+		Machine.interrupt().restore(intStatus);
+		ticks[which] += Stats.KernelTick;
+	    }
+	    done.V();
+	}
+
+	private int which;
+	private long[] ticks;
+	private boolean[] stop;
+	private Semaphore done;
+    }
+
+    /**
+     * Tests whether this module is working. Runs two CPU-bound threads at
+     * the lowest and highest priorities for a fixed window, and checks that
+     * they share the processor in proportion to their weights, and that the
+     * virtual runtimes of waiting threads stay within two time slices of
+     * each other.
+     *
+     * <p>
+     * With more than one virtual processor (<tt>ThreadedKernel.numCPUs</tt>),
+     * each processor has its own run queue (see <tt>RunQueues</tt>), and
+     * threads are ordered by virtual runtime only within a run queue, so
+     * the processor is not shared by weight across queues. The share check
+     * is then skipped.
+     */
+    public static void selfTest() {
+	if (!(ThreadedKernel.scheduler instanceof FairScheduler))
+	    return;
+
+	long[] ticks = new long[2];
+	boolean[] stop = new boolean[1];
+	Semaphore done = new Semaphore(0);
+
+	KThread low = new KThread(new BurnTest(0, ticks, stop, done))
+	    .setName("low");
+	KThread high = new KThread(new BurnTest(1, ticks, stop, done))
+	    .setName("high");
+
+	int lowWeight = weights[PriorityScheduler.priorityMinimum];
+	int highWeight = weights[PriorityScheduler.priorityMaximum];
+
+	boolean intStatus = Machine.interrupt().disable();
+	ThreadedKernel.scheduler.setPriority(low,
+					     PriorityScheduler.priorityMinimum);
+	ThreadedKernel.scheduler.setPriority(high,
+					     PriorityScheduler.priorityMaximum);
+	Machine.interrupt().restore(intStatus);
+
+	// measure the lag of this test only
+	long oldLag = Machine.stats().maxVruntimeLag;
+	Machine.stats().maxVruntimeLag = 0;
+
+	low.fork();
+	high.fork();
+	ThreadedKernel.alarm.waitUntil(100 * Stats.TimerTicks);
+
+	long lowTicks = ticks[0], highTicks = ticks[1];
+	stop[0] = true;
+	done.P();
+	done.P();
+
+	long lag = Machine.stats().maxVruntimeLag;
+	Machine.stats().maxVruntimeLag = Math.max(oldLag, lag);
+
+	// the shares match the weights to within 20%
+	if (Config.getInteger("ThreadedKernel.numCPUs", 1) == 1) {
+	    Lib.assertTrue(lowTicks > 0);
+	    long expected = lowTicks * highWeight / lowWeight;
+	    Lib.assertTrue(Math.abs(highTicks - expected) <= expected / 5);
+	}
+
+	// no waiting thread falls more than two time slices behind
+	Lib.assertTrue(lag <= 2L * Stats.TimerTicks
+		       * weights[PriorityScheduler.priorityDefault] / lowWeight);
+    }
+}
@@ -48,12 +48,14 @@ public class KThread {
 	    tcb = new TCB();
 	}	    
 	else {
-	    readyQueue = ThreadedKernel.scheduler.newThreadQueue(false);
+	    readyQueue = ThreadedKernel.scheduler.newReadyQueue(
+		Config.getInteger("ThreadedKernel.numCPUs", 1));
 	    readyQueue.acquire(this);	    
 
 	    currentThread = this;
 	    tcb = TCB.currentTCB();
 	    name = "main";
+	    SchedulingMetrics.register(this);
 	    restoreState();
 
 	    createIdleThread();
@@ -115,6 +117,31 @@ public class KThread {
 	return (name + " (#" + id + ")");
     }
 
+    /**
+     * Ask the scheduler to run this thread under a relative deadline. Each
+     * time this thread becomes ready after blocking, it should get up to
+     * <i>budget</i> ticks of processor time within <i>relativeDeadline</i>
+     * ticks. A relative deadline of 0 removes this thread's deadline.
+     *
+     * @param	relativeDeadline	the deadline of each activation, in
+     *					ticks, or 0.
+     * @param	budget	the processor time needed by each activation.
+     * @return	<tt>true</tt> if the scheduler admitted this thread with the
+     *		deadline.
+     *
+     * @see	nachos.threads.Scheduler#setDeadline
+     */
+    public boolean setDeadline(long relativeDeadline, long budget) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	boolean admitted =
+	    ThreadedKernel.scheduler.setDeadline(this, relativeDeadline,
+						 budget);
+
+	Machine.interrupt().restore(intStatus);
+	return admitted;
+    }
+
     /**
      * Deterministically and consistently compare this thread to another
      * thread.
@@ -151,6 +178,7 @@ public class KThread {
 		}
 	    });
 
+	SchedulingMetrics.register(this);
 	ready();
 	
 	Machine.interrupt().restore(intStatus);
@@ -189,12 +217,16 @@ public class KThread {
 	Machine.interrupt().disable();
 
 	Machine.autoGrader().finishingCurrentThread();
+	SchedulingMetrics.unregister(currentThread);
 
 	Lib.assertTrue(toBeDestroyed == null);
 	toBeDestroyed = currentThread;
 
 
 	currentThread.status = statusFinished;
+
+	// give back any processor time reserved for this thread's deadline
+	ThreadedKernel.scheduler.setDeadline(currentThread, 0, 0);
 	
 	//when threads calls join method, this section of code will move any threads that is move onto the waiting_queue back to ready_queue.
 	KThread temp; // temp stores info on next thread on the waiting_queue
@@ -228,6 +260,9 @@ public class KThread {
 	
 	boolean intStatus = Machine.interrupt().disable();
 
+	// charge the thread before it is queued, so it is queued by its
+	// up-to-date usage
+	currentThread.chargeRunTime();
 	currentThread.ready();
 
 	runNextThread();
@@ -254,6 +289,7 @@ public class KThread {
 	if (currentThread.status != statusFinished)
 	    currentThread.status = statusBlocked;
 
+	currentThread.chargeRunTime();
 	runNextThread();
     }
 
@@ -268,12 +304,35 @@ public class KThread {
 	Lib.assertTrue(status != statusReady);
 	
 	status = statusReady;
-	if (this != idleThread)
+	if (this != idleThread) {
 	    readyQueue.waitForAccess(this);
+	    SchedulingMetrics.threadReady(this);
+	    if (ThreadedKernel.alarm != null)
+		ThreadedKernel.alarm.threadReady();
+	}
 	
 	Machine.autoGrader().readyThread(this);
     }
 
+    /**
+     * Return <tt>true</tt> if this thread is ready or running.
+     *
+     * @return	<tt>true</tt> if this thread is not blocked, new, or finished.
+     */
+    boolean isRunnable() {
+	return status == statusReady || status == statusRunning;
+    }
+
+    /**
+     * Return <tt>true</tt> if this thread should preferably keep running on
+     * the virtual processor it last ran on. Used by <tt>RunQueues</tt>.
+     *
+     * @return	<tt>true</tt> if this thread has processor affinity.
+     */
+    protected boolean hasCPUAffinity() {
+	return false;
+    }
+
     /**
      * Waits for this thread to finish. If this thread is already finished,
      * return immediately. This method must only be called once; the second
@@ -321,6 +380,7 @@ public class KThread {
      */
     private static void runNextThread() {
 	KThread nextThread = readyQueue.nextThread();
+	SchedulingMetrics.threadDispatched(nextThread);
 	if (nextThread == null)
 	    nextThread = idleThread;
 
@@ -378,6 +438,8 @@ public class KThread {
 	Machine.autoGrader().runningThread(this);
 	
 	status = statusRunning;
+	runStartTime = Machine.timer().getTime();
+	SchedulingMetrics.threadRunning(this);
 
 	if (toBeDestroyed != null) {
 	    toBeDestroyed.tcb.destroy();
@@ -387,12 +449,29 @@ public class KThread {
     }
 
     /**
-     * Prepare this thread to give up the processor. Kernel threads do not
-     * need to do anything here.
+     * Prepare this thread to give up the processor. Charge the scheduler for
+     * any time this thread has spent running since <tt>yield()</tt> or
+     * <tt>sleep()</tt> charged it.
      */
     protected void saveState() {
 	Lib.assertTrue(Machine.interrupt().disabled());
 	Lib.assertTrue(this == currentThread);
+
+	chargeRunTime();
+    }
+
+    /**
+     * Charge the scheduler for the time this thread has spent running since
+     * <tt>restoreState()</tt>, or since it was last charged. <tt>yield()</tt>
+     * and <tt>sleep()</tt> charge the thread before the next thread is
+     * chosen, so that a scheduler that orders its queues by usage sees the
+     * time this thread just ran.
+     */
+    private void chargeRunTime() {
+	long now = Machine.timer().getTime();
+
+	ThreadedKernel.scheduler.chargeRunTime(this, now - runStartTime);
+	runStartTime = now;
     }
 
     private static class PingTest implements Runnable {
@@ -430,6 +509,13 @@ public class KThread {
      */
     public Object schedulingState = null;
 
+    /**
+     * Scheduler-independent measurements of this thread.
+     *
+     * @see	nachos.threads.SchedulingMetrics
+     */
+    SchedulingMetrics metrics = new SchedulingMetrics(this);
+
     private static final int statusNew = 0;
     private static final int statusReady = 1;
     private static final int statusRunning = 2;
@@ -446,6 +532,27 @@ public class KThread {
     private String name = "(unnamed thread)";
     private Runnable target;
     private TCB tcb;
+    /** The time at which this thread last received the processor. */
+    private long runStartTime = 0;
+    /** The virtual processor this thread last ran on, or -1. */
+    int cpu = -1;
+    /**
+     * The number of units this thread is waiting for in
+     * <tt>Semaphore.P()</tt>, or 0 once its request has been satisfied.
+     */
+    int semaphoreUnits = 0;
+    /**
+     * The next thread waiting on the same condition variable as this thread,
+     * if any. A thread waits on at most one condition variable at a time, so
+     * condition variables can link their waiters through this field instead
+     * of allocating list nodes.
+     */
+    KThread conditionNext = null;
+    /**
+     * The semaphore this thread blocks on in <tt>Condition.sleep()</tt>.
+     * Allocated the first time it is needed and reused afterwards.
+     */
+    Semaphore conditionWaiter = null;
 
     /**
      * Unique identifer for this thread. Used to deterministically compare
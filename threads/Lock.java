@@ -18,12 +18,39 @@ import nachos.machine.*;
  * Also, only the thread that acquired a lock may release it. As with
  * semaphores, the API does not allow you to read the lock state (because the
  * value could change immediately after you read it).
+ *
+ * <p>
+ * A lock can be made <i>adaptive</i> by giving it a spin limit. When an
+ * adaptive lock is busy and its holder is runnable on another virtual
+ * processor (see <tt>RunQueues</tt>), <tt>acquire()</tt> spins for up to
+ * that many ticks, giving up the processor between checks, in the hope that
+ * the holder releases the lock soon. If the lock is still busy after the
+ * limit, or the holder blocks, the thread waits in the lock's queue as
+ * usual, where it donates priority to the holder. With a single processor,
+ * adaptive locks never spin.
+ *
+ * <p>
+ * Every lock counts its acquisitions, how many of them found the lock busy,
+ * and how long it was held.
  */
 public class Lock {
     /**
      * Allocate a new lock. The lock will initially be <i>free</i>.
      */
     public Lock() {
+	this(0);
+    }
+
+    /**
+     * Allocate a new adaptive lock. The lock will initially be <i>free</i>.
+     *
+     * @param	spinTicks	the maximum number of ticks to spin before
+     *				waiting for a busy lock, or 0 to never spin.
+     */
+    public Lock(int spinTicks) {
+	Lib.assertTrue(spinTicks >= 0);
+
+	this.spinTicks = spinTicks;
     }
 
     /**
@@ -36,6 +63,17 @@ public class Lock {
 	boolean intStatus = Machine.interrupt().disable();
 	KThread thread = KThread.currentThread();
 
+	numAcquisitions++;
+
+	if (lockHolder != null) {
+	    numContended++;
+
+	    // spinning needs interrupts, since time only passes while they are
+	    // enabled
+	    if (intStatus)
+		spin(thread);
+	}
+
 	if (lockHolder != null) {
 	    waitQueue.waitForAccess(thread);
 	    KThread.sleep();
@@ -43,6 +81,7 @@ public class Lock {
 	else {
 	    waitQueue.acquire(thread);
 	    lockHolder = thread;
+	    acquireTime = Machine.timer().getTime();
 	}
 
 	Lib.assertTrue(lockHolder == thread);
@@ -50,6 +89,26 @@ public class Lock {
 	Machine.interrupt().restore(intStatus);
     }
 
+    /**
+     * Spin until this lock is free, its holder stops running on another
+     * processor, or the spin limit is reached. Called with interrupts
+     * disabled, and returns with interrupts disabled.
+     */
+    private void spin(KThread thread) {
+	long start = Machine.timer().getTime();
+
+	while (lockHolder != null && lockHolder.cpu >= 0 &&
+	       lockHolder.cpu != thread.cpu && lockHolder.isRunnable() &&
+	       Machine.timer().getTime() - start < spinTicks) {
+	    Machine.interrupt().enable();
+	    KThread.yield();
+	    Machine.interrupt().disable();
+	}
+
+	if (lockHolder == null)
+	    numSpinAcquisitions++;
+    }
+
     /**
      * Atomically release this lock, allowing other threads to acquire it.
      */
@@ -58,6 +117,11 @@ public class Lock {
 
 	boolean intStatus = Machine.interrupt().disable();
 
+	long now = Machine.timer().getTime();
+	numReleases++;
+	holdTicks += now - acquireTime;
+	acquireTime = now;
+
 	if ((lockHolder = waitQueue.nextThread()) != null)
 	    lockHolder.ready();
 	
@@ -73,6 +137,53 @@ public class Lock {
 	return (lockHolder == KThread.currentThread());
     }
 
+    /**
+     * Return the number of times this lock has been acquired.
+     *
+     * @return	the number of acquisitions.
+     */
+    public long getAcquisitions() {
+	return numAcquisitions;
+    }
+
+    /**
+     * Return the number of times this lock was busy when a thread tried to
+     * acquire it.
+     *
+     * @return	the number of contended acquisitions.
+     */
+    public long getContendedAcquisitions() {
+	return numContended;
+    }
+
+    /**
+     * Return the number of contended acquisitions that succeeded by spinning,
+     * without waiting in the lock's queue.
+     *
+     * @return	the number of acquisitions made while spinning.
+     */
+    public long getSpinAcquisitions() {
+	return numSpinAcquisitions;
+    }
+
+    /**
+     * Return the average number of ticks this lock was held, over all
+     * completed acquisitions.
+     *
+     * @return	the average hold time.
+     */
+    public long getAverageHoldTicks() {
+	return (numReleases == 0) ? 0 : holdTicks / numReleases;
+    }
+
+    private int spinTicks;
+    private long numAcquisitions = 0;
+    private long numContended = 0;
+    private long numSpinAcquisitions = 0;
+    private long numReleases = 0;
+    private long holdTicks = 0;
+    private long acquireTime = 0;
+
     private KThread lockHolder = null;
     private ThreadQueue waitQueue =
 	ThreadedKernel.scheduler.newThreadQueue(true);
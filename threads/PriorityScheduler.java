@@ -23,12 +23,24 @@ import java.util.*;
  * <p/>
  * A priority scheduler must partially solve the priority inversion problem; in
  * particular, priority must be donated through locks,` and through joins.
+ * <p/>
+ * <p/>
+ * To bound starvation, waiting threads can optionally be aged: if
+ * <tt>PriorityScheduler.agingInterval</tt> is set in <tt>nachos.conf</tt>, a
+ * thread gains one priority level (up to <tt>priorityMaximum</tt>) for every
+ * that many timer interrupts it spends waiting in a queue, and drops back to
+ * its own priority once it gets access. Aging is epoch based: a timer
+ * interrupt only advances the scheduler's epoch, and cached effective
+ * priorities computed in an earlier epoch are recomputed the next time they
+ * are needed, so no waiter is touched on a tick.
  */
 public class PriorityScheduler extends Scheduler {
     /**
      * Allocate a new priority scheduler.
      */
     public PriorityScheduler() {
+        agingInterval = Config.getInteger("PriorityScheduler.agingInterval", 0);
+        Lib.assertTrue(agingInterval >= 0);
     }
 
     /**
@@ -55,6 +67,21 @@ public class PriorityScheduler extends Scheduler {
         return getThreadState(thread).getEffectivePriority();
     }
 
+    /**
+     * Return the length of the longest chain of threads donating priority to
+     * the specified thread. A thread that nobody is waiting on through a lock
+     * or a join has a donation depth of 0. Must be called with interrupts
+     * disabled.
+     *
+     * @param thread the thread to measure.
+     * @return the donation depth of the thread.
+     */
+    public int getDonationDepth(KThread thread) {
+        Lib.assertTrue(Machine.interrupt().disabled());
+
+        return getThreadState(thread).getDonationDepth();
+    }
+
     public void setPriority(KThread thread, int priority) {
         Lib.assertTrue(Machine.interrupt().disabled());
 
@@ -64,6 +91,16 @@ public class PriorityScheduler extends Scheduler {
         getThreadState(thread).setPriority(priority);
     }
 
+    /**
+     * Advance the aging epoch, if aging is enabled.
+     */
+    public void timerInterrupt() {
+        Lib.assertTrue(Machine.interrupt().disabled());
+
+        if (agingInterval > 0)
+            agingEpoch++;
+    }
+
     public boolean increasePriority() {
         boolean intStatus = Machine.interrupt().disable();
 
@@ -107,6 +144,16 @@ public class PriorityScheduler extends Scheduler {
      */
     public static final int priorityMaximum = 7;
 
+    /**
+     * The number of timer interrupts a thread must wait to gain one priority
+     * level, or 0 if aging is disabled.
+     */
+    protected int agingInterval;
+    /**
+     * The number of aging epochs (timer interrupts) that have elapsed.
+     */
+    protected long agingEpoch = 0;
+
     /**
      * Return the scheduling state of the specified thread.
      *
@@ -273,13 +320,14 @@ public class PriorityScheduler extends Scheduler {
         public int getEffectivePriority() {
             if (!this.transferPriority) {
                 return priorityMinimum;
-            } else if (this.priorityChange) {
+            } else if (this.priorityChange || this.cacheEpoch != agingEpoch) {
                 // Recalculate effective priorities
                 this.effectivePriority = priorityMinimum;
                 for (final ThreadState curr : this.threadsWaiting) {
                     this.effectivePriority = Math.max(this.effectivePriority, curr.getEffectivePriority());
                 }
                 this.priorityChange = false;
+                this.cacheEpoch = agingEpoch;
             }
             return effectivePriority;
         }
@@ -317,6 +365,10 @@ public class PriorityScheduler extends Scheduler {
          * True if the effective priority of this queue has been invalidated.
          */
         protected boolean priorityChange = false;
+        /**
+         * The aging epoch in which the cached effective priority was computed.
+         */
+        protected long cacheEpoch = 0;
         /**
          * <tt>true</tt> if this queue should transfer priority from waiting
          * threads to the owning thread.
@@ -365,17 +417,32 @@ public class PriorityScheduler extends Scheduler {
         public int getEffectivePriority() {
 
             if (this.resourcesHave.isEmpty()) {
-                return this.getPriority();
-            } else if (this.priorityChange) {
-                this.effectivePriority = this.getPriority();
+                return this.getAgedPriority();
+            } else if (this.priorityChange || this.cacheEpoch != agingEpoch) {
+                this.effectivePriority = this.getAgedPriority();
                 for (final PriorityQueue PRIORQUEUE : this.resourcesHave) {
                     this.effectivePriority = Math.max(this.effectivePriority, PRIORQUEUE.getEffectivePriority());
                 }
                 this.priorityChange = false;
+                this.cacheEpoch = agingEpoch;
             }
             return this.effectivePriority;
         }
 
+        /**
+         * Return the priority of the associated thread, raised by one level
+         * for every <tt>agingInterval</tt> epochs it has been waiting.
+         *
+         * @return the aged priority of the associated thread.
+         */
+        public int getAgedPriority() {
+            if (agingInterval == 0 || this.resourcesWant.isEmpty())
+                return this.priority;
+
+            long levels = (agingEpoch - this.waitEpoch) / agingInterval;
+            return (int) Math.min(priorityMaximum, this.priority + levels);
+        }
+
         /**
          * Set the priority of the associated thread to the specified value.
          *
@@ -403,6 +470,8 @@ public class PriorityScheduler extends Scheduler {
          * @see nachos.threads.ThreadQueue#waitForAccess
          */
         public void waitForAccess(PriorityQueue waitQueue) {
+            if (this.resourcesWant.isEmpty())
+                this.waitEpoch = agingEpoch;
             this.resourcesWant.add(waitQueue);
             this.resourcesHave.remove(waitQueue);
             waitQueue.RemoveCache();
@@ -438,6 +507,23 @@ public class PriorityScheduler extends Scheduler {
             return thread;
         }
 
+        /**
+         * Return the length of the longest chain of threads donating priority
+         * to the associated thread through the queues it holds.
+         *
+         * @return the donation depth of the associated thread.
+         */
+        public int getDonationDepth() {
+            int depth = 0;
+            for (final PriorityQueue PRIORQUEUE : this.resourcesHave) {
+                if (!PRIORQUEUE.transferPriority) continue;
+                for (final ThreadState waiter : PRIORQUEUE.threadsWaiting) {
+                    depth = Math.max(depth, 1 + waiter.getDonationDepth());
+                }
+            }
+            return depth;
+        }
+
         private void RemoveCache() {
             if (this.priorityChange) return;
             this.priorityChange = true;
@@ -464,6 +550,14 @@ public class PriorityScheduler extends Scheduler {
          * Holds the effective priority of this Thread State.
          */
         protected int effectivePriority = priorityMinimum;
+        /**
+         * The aging epoch in which the cached effective priority was computed.
+         */
+        protected long cacheEpoch = 0;
+        /**
+         * The aging epoch in which the associated thread began waiting.
+         */
+        protected long waitEpoch = 0;
         /**
          * A list of the queues for which I am the current resource holder.
          */
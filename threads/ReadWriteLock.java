@@ -0,0 +1,359 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * A <tt>ReadWriteLock</tt> lets any number of threads hold it for reading at
+ * the same time, or a single thread hold it for writing. It is meant for
+ * kernel structures that are read much more often than they are changed.
+ *
+ * <p>
+ * Writers have preference: once a writer is waiting, new readers wait as
+ * well, so a steady stream of readers cannot starve writers. When a writer
+ * releases the lock, the next waiting writer gets it if there is one;
+ * otherwise all waiting readers get it together. A writer can
+ * <tt>downgrade()</tt> to a reader without letting another writer in
+ * between.
+ *
+ * <p>
+ * If priority donation is requested, every waiting thread donates priority
+ * to every thread holding the lock, readers included. Each holder owns a
+ * donation thread queue that all waiting threads wait in, in addition to the
+ * queue they are woken from; this requires a scheduler that lets a thread
+ * wait in several queues at once, such as <tt>PriorityScheduler</tt>.
+ */
+public class ReadWriteLock {
+    /**
+     * Allocate a new reader-writer lock that does not donate priority. The
+     * lock will initially be free.
+     */
+    public ReadWriteLock() {
+	this(false);
+    }
+
+    /**
+     * Allocate a new reader-writer lock. The lock will initially be free.
+     *
+     * @param	transferPriority	<tt>true</tt> if waiting threads should
+     *					donate priority to the threads holding
+     *					the lock.
+     */
+    public ReadWriteLock(boolean transferPriority) {
+	this.transferPriority = transferPriority;
+    }
+
+    /**
+     * Atomically wait until no writer holds or is waiting for this lock, then
+     * acquire it for reading. The current thread must not already hold this
+     * lock.
+     */
+    public void acquireRead() {
+	Lib.assertTrue(!isHeldByCurrentThread());
+
+	boolean intStatus = Machine.interrupt().disable();
+	KThread thread = KThread.currentThread();
+
+	if (writer == null && numWaitingWriters == 0) {
+	    grant(thread);
+	}
+	else {
+	    block(readQueue, thread);
+	}
+
+	Lib.assertTrue(holders.containsKey(thread) && writer == null);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Atomically release this lock for reading. If this was the last reader
+     * and a writer is waiting, the writer acquires the lock.
+     */
+    public void releaseRead() {
+	Lib.assertTrue(isReadHeldByCurrentThread());
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	release(KThread.currentThread());
+
+	if (holders.isEmpty() && numWaitingWriters > 0)
+	    wakeWriter();
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Atomically wait until no thread holds this lock, then acquire it for
+     * writing. The current thread must not already hold this lock.
+     */
+    public void acquireWrite() {
+	Lib.assertTrue(!isHeldByCurrentThread());
+
+	boolean intStatus = Machine.interrupt().disable();
+	KThread thread = KThread.currentThread();
+
+	if (holders.isEmpty()) {
+	    writer = thread;
+	    grant(thread);
+	}
+	else {
+	    numWaitingWriters++;
+	    block(writeQueue, thread);
+	}
+
+	Lib.assertTrue(writer == thread);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Atomically release this lock for writing, giving it to the next waiting
+     * writer, or else to all waiting readers.
+     */
+    public void releaseWrite() {
+	Lib.assertTrue(isWriteHeldByCurrentThread());
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	release(writer);
+	writer = null;
+
+	if (numWaitingWriters > 0)
+	    wakeWriter();
+	else
+	    wakeReaders();
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Atomically turn the current thread's write hold on this lock into a
+     * read hold. Waiting readers acquire the lock too, unless a writer is
+     * waiting.
+     */
+    public void downgrade() {
+	Lib.assertTrue(isWriteHeldByCurrentThread());
+
+	boolean intStatus = Machine.interrupt().disable();
+	KThread thread = writer;
+
+	release(thread);
+	writer = null;
+
+	if (numWaitingWriters == 0)
+	    wakeReaders();
+
+	grant(thread);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Test if the current thread holds this lock, for reading or writing.
+     *
+     * @return	true if the current thread holds this lock.
+     */
+    public boolean isHeldByCurrentThread() {
+	return holders.containsKey(KThread.currentThread());
+    }
+
+    /**
+     * Test if the current thread holds this lock for reading.
+     *
+     * @return	true if the current thread holds this lock for reading.
+     */
+    public boolean isReadHeldByCurrentThread() {
+	return writer == null && isHeldByCurrentThread();
+    }
+
+    /**
+     * Test if the current thread holds this lock for writing.
+     *
+     * @return	true if the current thread holds this lock for writing.
+     */
+    public boolean isWriteHeldByCurrentThread() {
+	return writer == KThread.currentThread();
+    }
+
+    /**
+     * Wait in the specified queue until another thread grants this lock to
+     * the current thread, donating priority to all holders meanwhile.
+     */
+    private void block(ThreadQueue queue, KThread thread) {
+	queue.waitForAccess(thread);
+
+	if (transferPriority) {
+	    waiters.add(thread);
+	    for (Iterator<ThreadQueue> i=holders.values().iterator();
+		 i.hasNext(); )
+		i.next().waitForAccess(thread);
+	}
+
+	KThread.sleep();
+    }
+
+    /**
+     * Record that the specified thread holds this lock. If donating, give it
+     * a donation queue that every waiting thread waits in.
+     */
+    private void grant(KThread thread) {
+	ThreadQueue donationQueue = null;
+
+	if (transferPriority) {
+	    if (freeDonationQueues.isEmpty())
+		donationQueue = ThreadedKernel.scheduler.newThreadQueue(true);
+	    else
+		donationQueue = freeDonationQueues.removeFirst();
+
+	    donationQueue.acquire(thread);
+	    for (Iterator<KThread> i=waiters.iterator(); i.hasNext(); )
+		donationQueue.waitForAccess(i.next());
+	}
+
+	holders.put(thread, donationQueue);
+    }
+
+    /**
+     * Record that the specified thread no longer holds this lock, and stop
+     * the waiting threads from donating priority to it.
+     */
+    private void release(KThread thread) {
+	ThreadQueue donationQueue = holders.remove(thread);
+
+	if (donationQueue != null) {
+	    while (donationQueue.nextThread() != null)
+		;
+	    freeDonationQueues.add(donationQueue);
+	}
+    }
+
+    private void wakeWriter() {
+	KThread thread = writeQueue.nextThread();
+	Lib.assertTrue(thread != null);
+
+	numWaitingWriters--;
+	waiters.remove(thread);
+
+	writer = thread;
+	grant(thread);
+	thread.ready();
+    }
+
+    private void wakeReaders() {
+	LinkedList<KThread> readers = new LinkedList<KThread>();
+
+	// stop every reader from waiting before granting any of them, so that
+	// none of them donates to another
+	KThread thread;
+	while ((thread = readQueue.nextThread()) != null) {
+	    waiters.remove(thread);
+	    readers.add(thread);
+	}
+
+	for (Iterator<KThread> i=readers.iterator(); i.hasNext(); ) {
+	    thread = i.next();
+	    grant(thread);
+	    thread.ready();
+	}
+    }
+
+    private static class ReaderTest implements Runnable {
+	ReaderTest(ReadWriteLock lock, int[] shared, Semaphore done) {
+	    this.lock = lock;
+	    this.shared = shared;
+	    this.done = done;
+	}
+
+	public void run() {
+	    lock.acquireRead();
+	    int value = shared[0];
+	    KThread.yield();
+	    Lib.assertTrue(shared[0] == value);
+	    lock.releaseRead();
+	    done.V();
+	}
+
+	private ReadWriteLock lock;
+	private int[] shared;
+	private Semaphore done;
+    }
+
+    private static class WriterTest implements Runnable {
+	WriterTest(ReadWriteLock lock, int[] shared, Semaphore done) {
+	    this.lock = lock;
+	    this.shared = shared;
+	    this.done = done;
+	}
+
+	public void run() {
+	    lock.acquireWrite();
+	    int value = shared[0];
+	    KThread.yield();
+	    shared[0] = value + 1;
+	    lock.releaseWrite();
+	    done.V();
+	}
+
+	private ReadWriteLock lock;
+	private int[] shared;
+	private Semaphore done;
+    }
+
+    /**
+     * Test if this module is working. Holds the lock for reading while
+     * readers and writers arrive, checks that the readers share the lock and
+     * that a waiting writer keeps out later readers, then downgrades.
+     */
+    public static void selfTest() {
+	ReadWriteLock lock =
+	    new ReadWriteLock(ThreadedKernel.scheduler instanceof PriorityScheduler);
+	int[] shared = new int[1];
+	Semaphore done = new Semaphore(0);
+
+	lock.acquireRead();
+	new KThread(new ReaderTest(lock, shared, done)).setName("reader").fork();
+	KThread.yield();
+	// the reader shared the lock with us and finished
+	done.P();
+
+	new KThread(new WriterTest(lock, shared, done)).setName("writer").fork();
+	KThread.yield();
+	new KThread(new ReaderTest(lock, shared, done)).setName("reader").fork();
+	KThread.yield();
+	Lib.assertTrue(shared[0] == 0);
+	lock.releaseRead();
+
+	done.P();
+	done.P();
+	Lib.assertTrue(shared[0] == 1);
+
+	lock.acquireWrite();
+	shared[0]++;
+	lock.downgrade();
+	new KThread(new ReaderTest(lock, shared, done)).setName("reader").fork();
+	done.P();
+	lock.releaseRead();
+	Lib.assertTrue(shared[0] == 2);
+    }
+
+    private boolean transferPriority;
+    private KThread writer = null;
+    private int numWaitingWriters = 0;
+
+    /** The threads holding this lock, and their donation queues. */
+    private HashMap<KThread, ThreadQueue> holders =
+	new HashMap<KThread, ThreadQueue>();
+    /** The threads waiting for this lock, if donating. */
+    private LinkedList<KThread> waiters = new LinkedList<KThread>();
+    private LinkedList<ThreadQueue> freeDonationQueues =
+	new LinkedList<ThreadQueue>();
+
+    private ThreadQueue readQueue =
+	ThreadedKernel.scheduler.newThreadQueue(false);
+    private ThreadQueue writeQueue =
+	ThreadedKernel.scheduler.newThreadQueue(false);
+}
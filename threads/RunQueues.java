@@ -0,0 +1,114 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A ready queue made of one run queue per virtual processor. Each run queue
+ * is an ordinary thread queue from the scheduler, so every scheduler can be
+ * used with any number of processors.
+ *
+ * <p>
+ * Nachos simulates a single processor, so the virtual processors take turns:
+ * each call to <tt>nextThread()</tt> dispatches the next processor in
+ * round-robin order, and only looks at that processor's run queue. If the
+ * run queue is empty, the processor steals a thread from the longest run
+ * queue instead of going idle.
+ *
+ * <p>
+ * A thread that becomes ready is placed on the shortest run queue. Threads
+ * with processor affinity (user threads, whose TLB contents stay useful on
+ * the processor they last ran on) go back to the processor they last ran on,
+ * unless its run queue is more than <tt>affinityImbalance</tt> threads longer
+ * than the shortest one. Steals and migrations are counted in <tt>Stats</tt>.
+ */
+public class RunQueues extends ThreadQueue {
+    /**
+     * Allocate a new set of run queues.
+     *
+     * @param	scheduler	the scheduler that allocates each run queue.
+     * @param	numCPUs		the number of virtual processors.
+     */
+    public RunQueues(Scheduler scheduler, int numCPUs) {
+	Lib.assertTrue(numCPUs > 0);
+
+	queues = new ThreadQueue[numCPUs];
+	lengths = new int[numCPUs];
+
+	for (int i=0; i<numCPUs; i++)
+	    queues[i] = scheduler.newThreadQueue(false);
+    }
+
+    public void waitForAccess(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	int shortest = cpu;
+	for (int i=0; i<queues.length; i++) {
+	    if (lengths[i] < lengths[shortest])
+		shortest = i;
+	}
+
+	int target = shortest;
+	if (thread.cpu >= 0 && thread.hasCPUAffinity() &&
+	    lengths[thread.cpu] <= lengths[shortest] + affinityImbalance)
+	    target = thread.cpu;
+
+	queues[target].waitForAccess(thread);
+	lengths[target]++;
+    }
+
+    public KThread nextThread() {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	cpu = (cpu + 1) % queues.length;
+
+	int source = cpu;
+	if (lengths[source] == 0) {
+	    for (int i=0; i<queues.length; i++) {
+		if (lengths[i] > lengths[source])
+		    source = i;
+	    }
+
+	    if (lengths[source] == 0)
+		return null;
+
+	    Machine.stats().numSteals++;
+	}
+
+	KThread thread = queues[source].nextThread();
+	Lib.assertTrue(thread != null);
+	lengths[source]--;
+
+	if (thread.cpu >= 0 && thread.cpu != cpu)
+	    Machine.stats().numMigrations++;
+	thread.cpu = cpu;
+
+	return thread;
+    }
+
+    public void acquire(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	queues[cpu].acquire(thread);
+	thread.cpu = cpu;
+    }
+
+    public void print() {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	for (int i=0; i<queues.length; i++) {
+	    System.out.print("cpu " + i + ": ");
+	    queues[i].print();
+	    System.out.println();
+	}
+    }
+
+    /**
+     * How many more threads than the shortest run queue a thread's previous
+     * processor may have before the thread gives up its affinity.
+     */
+    public static final int affinityImbalance = 2;
+
+    private ThreadQueue[] queues;
+    private int[] lengths;
+    private int cpu = 0;
+}
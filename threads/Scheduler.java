@@ -52,6 +52,22 @@ public abstract class Scheduler {
      */
     public abstract ThreadQueue newThreadQueue(boolean transferPriority);
 
+    /**
+     * Allocate a new ready queue for the specified number of virtual
+     * processors. With one processor this is simply
+     * <tt>newThreadQueue(false)</tt>; with more it is a set of per-processor
+     * run queues that balance threads between them.
+     *
+     * @param	numCPUs	the number of virtual processors.
+     * @return	a new ready queue.
+     */
+    public ThreadQueue newReadyQueue(int numCPUs) {
+	if (numCPUs == 1)
+	    return newThreadQueue(false);
+	else
+	    return new RunQueues(this, numCPUs);
+    }
+
     /**
      * Get the priority of the specified thread. Must be called with
      * interrupts disabled.
@@ -154,4 +170,52 @@ public abstract class Scheduler {
     public boolean decreasePriority() {
 	return false;
     }
+
+    /**
+     * Ask this scheduler to run the specified thread under a relative
+     * deadline. Every time the thread becomes ready after blocking, it should
+     * receive up to <i>budget</i> ticks of processor time within
+     * <i>relativeDeadline</i> ticks. A relative deadline of 0 removes any
+     * deadline the thread had. Must be called with interrupts disabled.
+     *
+     * @param	thread	the thread to set the deadline of.
+     * @param	relativeDeadline	the number of ticks the thread has to
+     *					finish each activation, or 0.
+     * @param	budget	the number of ticks the thread expects to run in each
+     *			activation.
+     * @return	<tt>true</tt> if the scheduler admitted the thread with this
+     *		deadline. Schedulers that do not support deadlines always
+     *		return <tt>false</tt>.
+     */
+    public boolean setDeadline(KThread thread, long relativeDeadline,
+			       long budget) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+	return false;
+    }
+
+    /**
+     * Notify this scheduler that a timer interrupt has occurred. Called by
+     * the alarm with interrupts disabled, before the current thread is
+     * preempted.
+     */
+    public void timerInterrupt() {
+	Lib.assertTrue(Machine.interrupt().disabled());
+    }
+
+    /**
+     * Notify this scheduler that the specified thread is giving up the
+     * processor after running for the specified number of ticks. Called with
+     * interrupts disabled by <tt>KThread.yield()</tt> and
+     * <tt>KThread.sleep()</tt>, before the thread is put back in a queue and
+     * the next thread is chosen, and by <tt>KThread.saveState()</tt> for any
+     * ticks since. Schedulers that account for processor usage (such as a
+     * fair scheduler) can use this to charge the thread for the time it ran.
+     *
+     * @param	thread	the thread that was running.
+     * @param	ticks	the number of ticks that elapsed since the thread
+     *			last received the processor or was last charged.
+     */
+    public void chargeRunTime(KThread thread, long ticks) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+    }
 }
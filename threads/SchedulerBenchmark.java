@@ -0,0 +1,374 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.Arrays;
+
+/**
+ * A synthetic workload for comparing schedulers. The benchmark forks a mix of
+ * CPU-bound threads (which burn simulated time and yield), I/O-bound threads
+ * (which sleep with <tt>Alarm.waitUntil()</tt>), and lock-contending threads
+ * (which acquire a chain of nested locks), gives them a spread of priorities,
+ * and reports one CSV row per kind of thread plus a total.
+ *
+ * <p>
+ * Each lock-contending thread starts at a different lock of the chain, and
+ * sleeps and then burns while holding its locks, so that the others queue
+ * behind it. The deeper a thread starts, the lower its priority: a thread
+ * that holds the last lock has the lowest priority, threads waiting for that
+ * lock hold earlier locks of their own, and other threads wait for those.
+ * Under <tt>PriorityScheduler</tt>, this forms donation chains as long as the
+ * chain of locks.
+ *
+ * <p>
+ * The benchmark uses whatever scheduler <tt>ThreadedKernel.scheduler</tt>
+ * names, so schedulers are compared by running Nachos once per scheduler. It
+ * runs from <tt>ThreadedKernel.run()</tt> when
+ * <tt>SchedulerBenchmark.run</tt> is <tt>true</tt>, and is configured with
+ * these <tt>nachos.conf</tt> keys:
+ *
+ * <ul>
+ * <li><tt>SchedulerBenchmark.cpuThreads</tt>,
+ * <tt>SchedulerBenchmark.ioThreads</tt>,
+ * <tt>SchedulerBenchmark.lockThreads</tt>: how many threads of each kind.
+ * <li><tt>SchedulerBenchmark.iterations</tt>: operations per thread.
+ * <li><tt>SchedulerBenchmark.burstTicks</tt>: simulated time burned by a
+ * CPU-bound operation; a lock-contending thread sleeps this long and then
+ * burns this long while holding its locks.
+ * <li><tt>SchedulerBenchmark.sleepTicks</tt>: the mean sleep of an I/O-bound
+ * operation.
+ * <li><tt>SchedulerBenchmark.lockDepth</tt>: how many locks are nested.
+ * <li><tt>SchedulerBenchmark.spinTicks</tt>: the spin limit of the locks;
+ * if positive, the locks are adaptive.
+ * <li><tt>SchedulerBenchmark.shortThreads</tt>: if positive, also run the
+ * short-lived thread benchmark with this many threads.
+ * <li><tt>SchedulerBenchmark.output</tt>: if set, the CSV is also written to
+ * this file through <tt>ThreadedKernel.fileSystem</tt>.
+ * </ul>
+ *
+ * <p>
+ * <i>Wait time</i> is the time an operation spent not running: the time a
+ * CPU-bound thread spent in <tt>yield()</tt>, the time an I/O-bound thread
+ * woke up past its requested wake time, and the time a lock-contending thread
+ * spent acquiring its locks.
+ *
+ * <p>
+ * The short-lived thread benchmark forks many threads that each run for a
+ * single burst and finish, keeping as many of them alive at once as the
+ * machine allows, and reports the host time spent as well as the simulated
+ * time. Running it with different values of <tt>ThreadedKernel.numCPUs</tt>
+ * shows how per-processor run queues and work stealing scale: simulated time
+ * does not change, since Nachos still has one real processor, but each run
+ * queue holds fewer threads and balancing activity is reported.
+ */
+public class SchedulerBenchmark {
+    /**
+     * Run the benchmark as configured in <tt>nachos.conf</tt> and print the
+     * results.
+     */
+    public static void run() {
+	SchedulerBenchmark benchmark =
+	    new SchedulerBenchmark(Config.getInteger("SchedulerBenchmark.cpuThreads", 4),
+				   Config.getInteger("SchedulerBenchmark.ioThreads", 4),
+				   Config.getInteger("SchedulerBenchmark.lockThreads", 4),
+				   Config.getInteger("SchedulerBenchmark.iterations", 50));
+
+	benchmark.burstTicks =
+	    Config.getInteger("SchedulerBenchmark.burstTicks", 200);
+	benchmark.sleepTicks =
+	    Config.getInteger("SchedulerBenchmark.sleepTicks", 2000);
+	benchmark.lockDepth =
+	    Config.getInteger("SchedulerBenchmark.lockDepth", 3);
+	benchmark.spinTicks =
+	    Config.getInteger("SchedulerBenchmark.spinTicks", 0);
+
+	String csv = benchmark.execute();
+
+	int shortThreads = Config.getInteger("SchedulerBenchmark.shortThreads", 0);
+	if (shortThreads > 0)
+	    csv += benchmark.executeShortLived(shortThreads);
+
+	System.out.print(csv);
+
+	String output = Config.getString("SchedulerBenchmark.output");
+	if (output != null && ThreadedKernel.fileSystem != null) {
+	    OpenFile file = ThreadedKernel.fileSystem.open(output, true);
+	    if (file != null) {
+		byte[] bytes = csv.getBytes();
+		file.write(bytes, 0, bytes.length);
+		file.close();
+	    }
+	}
+    }
+
+    /**
+     * Allocate a new benchmark.
+     *
+     * @param	cpuThreads	the number of CPU-bound threads.
+     * @param	ioThreads	the number of I/O-bound threads.
+     * @param	lockThreads	the number of lock-contending threads.
+     * @param	iterations	the number of operations each thread performs.
+     */
+    public SchedulerBenchmark(int cpuThreads, int ioThreads, int lockThreads,
+			      int iterations) {
+	Lib.assertTrue(cpuThreads >= 0 && ioThreads >= 0 && lockThreads >= 0);
+	Lib.assertTrue(iterations > 0);
+
+	numThreads = new int[] { cpuThreads, ioThreads, lockThreads };
+	this.iterations = iterations;
+    }
+
+    /**
+     * Fork the workload, wait for every thread to finish, and return the
+     * results as CSV, including a header line.
+     *
+     * @return	the benchmark results.
+     */
+    public String execute() {
+	Lib.assertTrue(lockDepth > 0);
+
+	locks = new Lock[lockDepth];
+	for (int i=0; i<lockDepth; i++)
+	    locks[i] = new Lock(spinTicks);
+
+	int total = numThreads[cpuBound] + numThreads[ioBound]
+	    + numThreads[lockBound];
+	Semaphore done = new Semaphore(0);
+
+	for (int kind=0; kind<numKinds; kind++)
+	    waits[kind] = new long[numThreads[kind] * iterations];
+
+	long startTime = Machine.timer().getTime();
+	long startSwitches = Machine.stats().numContextSwitches;
+
+	int forked = 0;
+	for (int kind=0; kind<numKinds; kind++) {
+	    for (int i=0; i<numThreads[kind]; i++) {
+		KThread thread = new KThread(new Worker(kind, i, done));
+		thread.setName(kindNames[kind] + " " + i);
+
+		int priority = forked % (PriorityScheduler.priorityMaximum + 1);
+		if (kind == lockBound) {
+		    // the thread holding the last lock runs at the lowest
+		    // priority, with higher priorities queued behind it
+		    priority = Math.min(PriorityScheduler.priorityMaximum,
+					lockDepth - 1 - i % lockDepth);
+		}
+
+		boolean intStatus = Machine.interrupt().disable();
+		ThreadedKernel.scheduler.setPriority(thread, priority);
+		Machine.interrupt().restore(intStatus);
+
+		thread.fork();
+		forked++;
+	    }
+	}
+
+	for (int i=0; i<total; i++)
+	    done.P();
+
+	long elapsed = Machine.timer().getTime() - startTime;
+	long switches = Machine.stats().numContextSwitches - startSwitches;
+
+	String scheduler = ThreadedKernel.scheduler.getClass().getName();
+	StringBuffer csv = new StringBuffer(header);
+	long[] all = new long[0];
+
+	for (int kind=0; kind<numKinds; kind++) {
+	    csv.append(row(scheduler, kindNames[kind], numThreads[kind],
+			   waits[kind], elapsed, switches));
+
+	    long[] merged = new long[all.length + waits[kind].length];
+	    System.arraycopy(all, 0, merged, 0, all.length);
+	    System.arraycopy(waits[kind], 0, merged, all.length,
+			     waits[kind].length);
+	    all = merged;
+	}
+	csv.append(row(scheduler, "all", total, all, elapsed, switches));
+
+	return csv.toString();
+    }
+
+    /**
+     * Fork the specified number of short-lived threads, wait for them all to
+     * finish, and return the results as CSV, including a header line.
+     *
+     * @param	threads	the number of threads to fork.
+     * @return	the benchmark results.
+     */
+    public String executeShortLived(int threads) {
+	Lib.assertTrue(threads > 0);
+
+	Semaphore done = new Semaphore(0);
+	Runnable burst = new Runnable() {
+		public void run() {
+		    burn(shortBurstTicks);
+		}
+	    };
+
+	long startTime = Machine.timer().getTime();
+	long startMillis = System.currentTimeMillis();
+	long startSteals = Machine.stats().numSteals;
+	long startMigrations = Machine.stats().numMigrations;
+
+	int forked = 0, finished = 0;
+	while (finished < threads) {
+	    // keep the number of live threads below the machine's limit
+	    while (forked < threads && forked - finished < maxLiveThreads) {
+		new KThread(new ShortLived(burst, done))
+		    .setName("short " + forked).fork();
+		forked++;
+	    }
+
+	    done.P();
+	    finished++;
+	}
+
+	long elapsed = Machine.timer().getTime() - startTime;
+	long millis = System.currentTimeMillis() - startMillis;
+
+	return shortHeader + ThreadedKernel.scheduler.getClass().getName() + ","
+	    + Config.getInteger("ThreadedKernel.numCPUs", 1) + "," + threads
+	    + "," + elapsed + "," + millis + ","
+	    + (Machine.stats().numSteals - startSteals) + ","
+	    + (Machine.stats().numMigrations - startMigrations) + "\n";
+    }
+
+    private String row(String scheduler, String kind, int threads,
+		       long[] samples, long elapsed, long switches) {
+	long sum = 0;
+	for (int i=0; i<samples.length; i++)
+	    sum += samples[i];
+
+	long[] sorted = samples.clone();
+	Arrays.sort(sorted);
+
+	long mean = (sorted.length == 0) ? 0 : sum / sorted.length;
+	long p99 = (sorted.length == 0) ? 0 :
+	    sorted[Math.min(sorted.length - 1, sorted.length * 99 / 100)];
+	// operations per thousand ticks, to three decimal places
+	long throughput =
+	    (elapsed == 0) ? 0 : samples.length * 1000000L / elapsed;
+
+	return scheduler + "," + kind + "," + threads + "," + samples.length
+	    + "," + elapsed + "," + throughput / 1000 + "."
+	    + (throughput % 1000 + 1000 + "").substring(1) + ","
+	    + mean + "," + p99 + ","
+	    + switches + "," + maxDonationDepth + "\n";
+    }
+
+    /**
+     * Burn the specified amount of simulated time. Each time interrupts are
+     * enabled, the clock advances by <tt>Stats.KernelTick</tt>, and the timer
+     * interrupt may preempt the current thread.
+     */
+    private static void burn(int ticks) {
+	for (int spent=0; spent<ticks; spent+=Stats.KernelTick) {
+	    boolean intStatus = Machine.interrupt().disable();
+	    Machine.interrupt().restore(intStatus);
+	}
+    }
+
+    private class Worker implements Runnable {
+	Worker(int kind, int which, Semaphore done) {
+	    this.kind = kind;
+	    this.which = which;
+	    this.done = done;
+	}
+
+	public void run() {
+	    for (int i=0; i<iterations; i++)
+		waits[kind][which*iterations + i] = operation();
+
+	    done.V();
+	}
+
+	private long operation() {
+	    long start = Machine.timer().getTime();
+
+	    switch (kind) {
+	    case cpuBound:
+		burn(burstTicks);
+		start = Machine.timer().getTime();
+		KThread.yield();
+		return Machine.timer().getTime() - start;
+
+	    case ioBound:
+		long sleep = 1 + Lib.random(2 * sleepTicks);
+		ThreadedKernel.alarm.waitUntil(sleep);
+		return Math.max(0, Machine.timer().getTime() - (start + sleep));
+
+	    default:
+		// start at a different lock in each thread, so that waiters
+		// hold locks of their own and donation chains form
+		int first = which % lockDepth;
+		for (int i=first; i<lockDepth; i++)
+		    locks[i].acquire();
+		long wait = Machine.timer().getTime() - start;
+
+		// block while holding the locks, so the others queue up
+		ThreadedKernel.alarm.waitUntil(burstTicks);
+		sampleDonationDepth();
+		burn(burstTicks);
+
+		for (int i=lockDepth-1; i>=first; i--)
+		    locks[i].release();
+		return wait;
+	    }
+	}
+
+	private void sampleDonationDepth() {
+	    if (!(ThreadedKernel.scheduler instanceof PriorityScheduler))
+		return;
+
+	    boolean intStatus = Machine.interrupt().disable();
+	    int depth = ((PriorityScheduler) ThreadedKernel.scheduler)
+		.getDonationDepth(KThread.currentThread());
+	    maxDonationDepth = Math.max(maxDonationDepth, depth);
+	    Machine.interrupt().restore(intStatus);
+	}
+
+	private int kind, which;
+	private Semaphore done;
+    }
+
+    private static class ShortLived implements Runnable {
+	ShortLived(Runnable burst, Semaphore done) {
+	    this.burst = burst;
+	    this.done = done;
+	}
+
+	public void run() {
+	    burst.run();
+	    done.V();
+	}
+
+	private Runnable burst;
+	private Semaphore done;
+    }
+
+    private static final int cpuBound = 0, ioBound = 1, lockBound = 2;
+    private static final int numKinds = 3;
+    private static final String[] kindNames = { "cpu", "io", "lock" };
+
+    private static final String header =
+	"scheduler,workload,threads,operations,elapsed_ticks,"
+	+ "ops_per_kilotick,mean_wait,p99_wait,context_switches,"
+	+ "max_donation_depth\n";
+    private static final String shortHeader =
+	"scheduler,cpus,threads,elapsed_ticks,host_millis,steals,migrations\n";
+
+    private static final int shortBurstTicks = 50;
+    private static final int maxLiveThreads = 200;
+
+    private int[] numThreads;
+    private int iterations;
+    private int burstTicks = 200;
+    private int sleepTicks = 2000;
+    private int lockDepth = 3;
+    private int spinTicks = 0;
+
+    private Lock[] locks;
+    private long[][] waits = new long[numKinds][];
+    private int maxDonationDepth = 0;
+}
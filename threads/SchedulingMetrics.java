@@ -0,0 +1,218 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * Scheduler-independent instrumentation of the ready queue. <tt>KThread</tt>
+ * calls into this class when a thread becomes ready, when the next thread is
+ * taken from the ready queue, and when a thread starts running, so these
+ * measurements are the same no matter which scheduler is configured.
+ *
+ * <p>
+ * Global counters (context switches, ready queue length, and a histogram of
+ * ready-queue wait times) are kept in <tt>Stats</tt> and printed when Nachos
+ * halts. In addition, every thread keeps its own wait histogram in an
+ * instance of this class. <tt>toJSON()</tt> returns the global counters and
+ * the histograms of all live threads; if <tt>SchedulingMetrics.dump</tt> is
+ * set in <tt>nachos.conf</tt>, the kernel prints it when it terminates.
+ *
+ * <p>
+ * All methods must be called with interrupts disabled.
+ */
+public class SchedulingMetrics {
+    /**
+     * Allocate the metrics of the specified thread.
+     *
+     * @param	thread	the thread to measure.
+     */
+    SchedulingMetrics(KThread thread) {
+	this.thread = thread;
+    }
+
+    /**
+     * Record that the specified thread was added to the ready queue.
+     *
+     * @param	thread	the thread that became ready.
+     */
+    static void threadReady(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	Stats stats = Machine.stats();
+
+	thread.metrics.readyTime = Machine.timer().getTime();
+	readyQueueLength++;
+	stats.maxReadyQueueLength =
+	    Math.max(stats.maxReadyQueueLength, readyQueueLength);
+    }
+
+    /**
+     * Record that the specified thread was taken from the ready queue to run
+     * next, or that the idle thread will run if <i>thread</i> is
+     * <tt>null</tt>.
+     *
+     * @param	thread	the thread taken from the ready queue, or
+     *			<tt>null</tt>.
+     */
+    static void threadDispatched(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	if (thread != null)
+	    readyQueueLength--;
+
+	Machine.stats().numContextSwitches++;
+    }
+
+    /**
+     * Record that the specified thread is now running, and charge the time it
+     * spent in the ready queue to its histogram and to the global one.
+     *
+     * @param	thread	the thread that is now running.
+     */
+    static void threadRunning(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	SchedulingMetrics metrics = thread.metrics;
+	if (metrics.readyTime < 0)
+	    return;
+
+	long wait = Machine.timer().getTime() - metrics.readyTime;
+	metrics.readyTime = -1;
+
+	int bucket = bucket(wait);
+	metrics.numReadyWaits++;
+	metrics.readyWaitTicks += wait;
+	metrics.readyWaitHistogram[bucket]++;
+
+	Stats stats = Machine.stats();
+	stats.numReadyWaits++;
+	stats.readyWaitTicks += wait;
+	stats.readyWaitHistogram[bucket]++;
+    }
+
+    /**
+     * Return the number of threads waiting in the ready queue.
+     *
+     * @return	the length of the ready queue.
+     */
+    static int readyQueueLength() {
+	return readyQueueLength;
+    }
+
+    /**
+     * Start reporting the metrics of the specified thread in
+     * <tt>toJSON()</tt>.
+     *
+     * @param	thread	a thread that has been forked.
+     */
+    static void register(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	if (numLive == live.length) {
+	    SchedulingMetrics[] grown = new SchedulingMetrics[live.length * 2];
+	    System.arraycopy(live, 0, grown, 0, numLive);
+	    live = grown;
+	}
+
+	thread.metrics.index = numLive;
+	live[numLive++] = thread.metrics;
+    }
+
+    /**
+     * Stop reporting the metrics of the specified thread.
+     *
+     * @param	thread	a thread that is finishing.
+     */
+    static void unregister(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	int index = thread.metrics.index;
+	if (index < 0)
+	    return;
+
+	live[index] = live[--numLive];
+	live[index].index = index;
+	live[numLive] = null;
+	thread.metrics.index = -1;
+    }
+
+    /**
+     * Return the global scheduling counters and the ready-wait histograms of
+     * all live threads, as a JSON object.
+     *
+     * @return	the scheduling metrics in JSON.
+     */
+    public static String toJSON() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	Stats stats = Machine.stats();
+	StringBuffer json = new StringBuffer();
+
+	json.append("{\"contextSwitches\":" + stats.numContextSwitches);
+	json.append(",\"maxReadyQueueLength\":" + stats.maxReadyQueueLength);
+	json.append(",\"readyWaits\":" + stats.numReadyWaits);
+	json.append(",\"readyWaitTicks\":" + stats.readyWaitTicks);
+	json.append(",\"readyWaitHistogram\":");
+	appendArray(json, stats.readyWaitHistogram);
+	json.append(",\"threads\":[");
+
+	for (int i=0; i<numLive; i++) {
+	    SchedulingMetrics metrics = live[i];
+
+	    if (i > 0)
+		json.append(",");
+	    json.append("{\"name\":\"");
+	    appendEscaped(json, metrics.thread.toString());
+	    json.append("\",\"readyWaits\":" + metrics.numReadyWaits);
+	    json.append(",\"readyWaitTicks\":" + metrics.readyWaitTicks);
+	    json.append(",\"readyWaitHistogram\":");
+	    appendArray(json, metrics.readyWaitHistogram);
+	    json.append("}");
+	}
+	json.append("]}");
+
+	Machine.interrupt().restore(intStatus);
+	return json.toString();
+    }
+
+    private static void appendArray(StringBuffer json, long[] values) {
+	json.append("[");
+	for (int i=0; i<values.length; i++) {
+	    if (i > 0)
+		json.append(",");
+	    json.append(values[i]);
+	}
+	json.append("]");
+    }
+
+    private static void appendEscaped(StringBuffer json, String s) {
+	for (int i=0; i<s.length(); i++) {
+	    char c = s.charAt(i);
+	    if (c == '"' || c == '\\')
+		json.append('\\');
+	    if (c < ' ')
+		json.append(' ');
+	    else
+		json.append(c);
+	}
+    }
+
+    /**
+     * Return the histogram bucket of the specified wait: the number of bits
+     * needed to represent it, capped at the last bucket.
+     */
+    private static int bucket(long wait) {
+	int bucket = 64 - Long.numberOfLeadingZeros(wait);
+	return Math.min(bucket, Stats.HistogramBuckets - 1);
+    }
+
+    private KThread thread;
+    private long readyTime = -1;
+    private int index = -1;
+    private long numReadyWaits = 0;
+    private long readyWaitTicks = 0;
+    private long[] readyWaitHistogram = new long[Stats.HistogramBuckets];
+
+    private static int readyQueueLength = 0;
+    private static SchedulingMetrics[] live = new SchedulingMetrics[16];
+    private static int numLive = 0;
+}
@@ -2,6 +2,8 @@ package nachos.threads;
 
 import nachos.machine.*;
 
+import java.util.LinkedList;
+
 /**
  * A <tt>Semaphore</tt> is a synchronization primitive with an unsigned value.
  * A semaphore has only two operations:
@@ -20,6 +22,15 @@ import nachos.machine.*;
  * because by the time you get the value, a context switch might have occurred,
  * and some other thread might have called <tt>P()</tt> or <tt>V()</tt>, so the
  * true value might now be different.
+ *
+ * <p>
+ * <tt>P(n)</tt> and <tt>V(n)</tt> move <i>n</i> units at once, and
+ * <tt>tryP()</tt> gives up after a number of ticks. Waiting threads are served
+ * in the order chosen by the semaphore's thread queue: the next one is taken
+ * out of the queue and held until the value is large enough for its request,
+ * so a large request is not starved by a stream of small ones. A waiter
+ * whose <tt>tryP()</tt> times out is removed by re-queueing the other
+ * waiters, which schedulers see as the others starting to wait again.
  */
 public class Semaphore {
     /**
@@ -35,17 +46,75 @@ public class Semaphore {
      * Atomically wait for this semaphore to become non-zero and decrement it.
      */
     public void P() {
+	P(1);
+    }
+
+    /**
+     * Atomically wait for this semaphore to be at least <i>n</i> and subtract
+     * <i>n</i> from it.
+     *
+     * @param	n	the number of units to take. Must be positive.
+     */
+    public void P(int n) {
+	Lib.assertTrue(n > 0);
+
 	boolean intStatus = Machine.interrupt().disable();
 
-	if (value == 0) {
-	    waitQueue.waitForAccess(KThread.currentThread());
+	if (!take(n)) {
+	    waitFor(n);
 	    KThread.sleep();
 	}
-	else {
-	    value--;
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Atomically decrement this semaphore, waiting at most <i>ticks</i> ticks
+     * for it to become non-zero.
+     *
+     * @param	ticks	the maximum number of ticks to wait.
+     * @return	<tt>true</tt> if the semaphore was decremented, or
+     *		<tt>false</tt> if the wait timed out.
+     */
+    public boolean tryP(long ticks) {
+	return tryP(1, ticks);
+    }
+
+    /**
+     * Atomically subtract <i>n</i> from this semaphore, waiting at most
+     * <i>ticks</i> ticks for it to be at least <i>n</i>. The timeout is
+     * detected by the alarm, so the wait may last until the first timer
+     * interrupt after <i>ticks</i> ticks.
+     *
+     * @param	n	the number of units to take. Must be positive.
+     * @param	ticks	the maximum number of ticks to wait.
+     * @return	<tt>true</tt> if <i>n</i> was subtracted, or <tt>false</tt> if
+     *		the wait timed out.
+     */
+    public boolean tryP(int n, long ticks) {
+	Lib.assertTrue(n > 0);
+
+	boolean intStatus = Machine.interrupt().disable();
+	boolean taken = take(n);
+
+	if (!taken && ticks > 0) {
+	    final KThread thread = KThread.currentThread();
+
+	    waitFor(n);
+	    long timeout =
+		ThreadedKernel.alarm.setTimeout(ticks, new Runnable() {
+			public void run() { timeOut(thread); }
+		    });
+	    KThread.sleep();
+
+	    taken = (thread.semaphoreUnits == 0);
+	    if (taken)
+		ThreadedKernel.alarm.cancelTimeout(timeout);
+	    thread.semaphoreUnits = 0;
 	}
 
 	Machine.interrupt().restore(intStatus);
+	return taken;
     }
 
     /**
@@ -53,17 +122,109 @@ public class Semaphore {
      * sleeping on this semaphore.
      */
     public void V() {
+	V(1);
+    }
+
+    /**
+     * Atomically add <i>n</i> to this semaphore and wake up, in order, every
+     * waiting thread whose request can now be satisfied.
+     *
+     * @param	n	the number of units to add. Must be positive.
+     */
+    public void V(int n) {
+	Lib.assertTrue(n > 0);
+
 	boolean intStatus = Machine.interrupt().disable();
 
-	KThread thread = waitQueue.nextThread();
-	if (thread != null) {
-	    thread.ready();
+	value += n;
+	wakeWaiters();
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Subtract <i>n</i> without waiting if the value is large enough and no
+     * other thread is waiting.
+     */
+    private boolean take(int n) {
+	if (numWaiting > 0 || value < n)
+	    return false;
+
+	value -= n;
+	return true;
+    }
+
+    /**
+     * Make the current thread wait for <i>n</i> units. The caller must then
+     * sleep.
+     */
+    private void waitFor(int n) {
+	KThread thread = KThread.currentThread();
+
+	thread.semaphoreUnits = n;
+	numWaiting++;
+	waitQueue.waitForAccess(thread);
+    }
+
+    /**
+     * Wake up waiting threads in order for as long as the next one's request
+     * can be satisfied.
+     */
+    private void wakeWaiters() {
+	while (true) {
+	    if (nextWaiter == null)
+		nextWaiter = waitQueue.nextThread();
+	    if (nextWaiter == null || nextWaiter.semaphoreUnits > value)
+		return;
+
+	    value -= nextWaiter.semaphoreUnits;
+	    nextWaiter.semaphoreUnits = 0;
+	    numWaiting--;
+
+	    if (wakeLog != null)
+		wakeLog.append(nextWaiter.getName());
+	    nextWaiter.ready();
+	    nextWaiter = null;
+	}
+    }
+
+    /**
+     * Called by the alarm when a <tt>tryP()</tt> times out. If the thread is
+     * still waiting, remove it from the waiters and wake it up.
+     *
+     * <p>
+     * Thread queues cannot remove an arbitrary thread, so unless the thread
+     * is the next waiter, every waiter is taken out of the queue and the
+     * others are put back with <tt>waitForAccess()</tt>. The order is kept,
+     * but the scheduler sees the others start waiting again: under
+     * <tt>DeadlineScheduler</tt> each of them starts a new activation, with
+     * a later deadline, and under <tt>PriorityScheduler</tt> aging each of
+     * them starts aging again from the current epoch.
+     */
+    private void timeOut(KThread thread) {
+	if (thread.semaphoreUnits == 0)
+	    return;
+
+	if (nextWaiter == thread) {
+	    nextWaiter = null;
 	}
 	else {
-	    value++;
+	    // take every thread out and put the others back in the same order
+	    LinkedList<KThread> others = new LinkedList<KThread>();
+	    KThread waiter;
+	    while ((waiter = waitQueue.nextThread()) != null) {
+		if (waiter != thread)
+		    others.add(waiter);
+	    }
+	    while (!others.isEmpty())
+		waitQueue.waitForAccess(others.removeFirst());
 	}
-	
-	Machine.interrupt().restore(intStatus);
+
+	numWaiting--;
+	thread.ready();
+
+	// the thread may have been holding back smaller requests
+	wakeWaiters();
     }
 
     private static class PingTest implements Runnable {
@@ -83,8 +244,53 @@ public class Semaphore {
 	private Semaphore pong;
     }
 
+    private static class WaitTest implements Runnable {
+	WaitTest(Semaphore pool, Semaphore done, int units, long ticks,
+		 StringBuffer timeouts) {
+	    this.pool = pool;
+	    this.done = done;
+	    this.units = units;
+	    this.ticks = ticks;
+	    this.timeouts = timeouts;
+	}
+
+	/**
+	 * Take the units with <tt>P()</tt>, or with <tt>tryP()</tt> if
+	 * <i>ticks</i> is not negative, logging the thread's name if the wait
+	 * timed out.
+	 */
+	public void run() {
+	    if (ticks < 0)
+		pool.P(units);
+	    else if (!pool.tryP(units, ticks))
+		timeouts.append(KThread.currentThread().getName());
+	    done.V();
+	}
+
+	private Semaphore pool;
+	private Semaphore done;
+	private int units;
+	private long ticks;
+	private StringBuffer timeouts;
+    }
+
+    /**
+     * Fork a thread that waits for <i>units</i> of <i>pool</i>, and wait
+     * until it has started waiting.
+     */
+    private static void forkWaiter(String name, Semaphore pool, Semaphore done,
+				   int units, long ticks, StringBuffer timeouts) {
+	int waiting = pool.numWaiting;
+	new KThread(new WaitTest(pool, done, units, ticks, timeouts))
+	    .setName(name).fork();
+	while (pool.numWaiting == waiting)
+	    KThread.yield();
+    }
+
     /**
-     * Test if this module is working.
+     * Test if this module is working. The order in which waiters are woken
+     * is checked with the semaphore's wake log, since the order in which
+     * they then run is up to the scheduler.
      */
     public static void selfTest() {
 	Semaphore ping = new Semaphore(0);
@@ -96,9 +302,59 @@ public class Semaphore {
 	    ping.V();
 	    pong.P();
 	}
+
+	// one V(n) wakes every waiter it can satisfy, in order
+	Semaphore pool = new Semaphore(0);
+	Semaphore done = new Semaphore(0);
+	StringBuffer timeouts = new StringBuffer();
+	pool.wakeLog = new StringBuffer();
+	forkWaiter("a", pool, done, 2, -1, timeouts);
+	forkWaiter("b", pool, done, 1, -1, timeouts);
+	forkWaiter("c", pool, done, 2, -1, timeouts);
+	pool.V(5);
+	Lib.assertTrue(pool.wakeLog.toString().equals("abc"));
+	done.P(3);
+	Lib.assertTrue(!pool.tryP(0));
+
+	// a large request at the head holds back smaller ones behind it
+	pool.wakeLog.setLength(0);
+	forkWaiter("a", pool, done, 3, -1, timeouts);
+	forkWaiter("b", pool, done, 1, -1, timeouts);
+	pool.V(2);
+	Lib.assertTrue(pool.wakeLog.length() == 0);
+	Lib.assertTrue(!pool.tryP(0));
+	pool.V(1);
+	Lib.assertTrue(pool.wakeLog.toString().equals("a"));
+	pool.V(1);
+	Lib.assertTrue(pool.wakeLog.toString().equals("ab"));
+	done.P(2);
+
+	// a timed out request returns false and takes nothing
+	pool.V(1);
+	Lib.assertTrue(!pool.tryP(2, 1000));
+	Lib.assertTrue(pool.tryP(1, 0));
+	Lib.assertTrue(!pool.tryP(0));
+
+	// a waiter that times out in the middle of the queue leaves the others
+	// in order
+	pool.wakeLog.setLength(0);
+	forkWaiter("a", pool, done, 1, -1, timeouts);
+	forkWaiter("b", pool, done, 1, 500, timeouts);
+	forkWaiter("c", pool, done, 1, -1, timeouts);
+	done.P();
+	Lib.assertTrue(timeouts.toString().equals("b"));
+	Lib.assertTrue(pool.wakeLog.length() == 0);
+	pool.V(2);
+	Lib.assertTrue(pool.wakeLog.toString().equals("ac"));
+	done.P(2);
+	Lib.assertTrue(!pool.tryP(0));
     }
 
     private int value;
+    private int numWaiting = 0;
+    private KThread nextWaiter = null;
+    /** The names of the threads woken by this semaphore, when testing. */
+    private StringBuffer wakeLog = null;
     private ThreadQueue waitQueue =
 	ThreadedKernel.scheduler.newThreadQueue(false);
 }
@@ -49,22 +49,43 @@ public class ThreadedKernel extends Kernel {
 	KThread.selfTest();
 	Semaphore.selfTest();
 	SynchList.selfTest();
+	BoundedSynchList.selfTest();
+	Alarm.selfTest();
+	ReadWriteLock.selfTest();
+	CountDownLatch.selfTest();
+	Barrier.selfTest();
+	BufferedCommunicator.selfTest();
+	FairScheduler.selfTest();
+	DeadlineScheduler.selfTest();
 	if (Machine.bank() != null) {
 	    ElevatorBank.selfTest();
 	}
     }
     
     /**
-     * A threaded kernel does not run user programs, so this method does
-     * nothing.
+     * A threaded kernel does not run user programs. If
+     * <tt>SchedulerBenchmark.run</tt>, <tt>CommunicatorBenchmark.run</tt>, or
+     * <tt>AlarmBenchmark.run</tt> is set in <tt>nachos.conf</tt>, runs that
+     * benchmark; otherwise does nothing.
      */
     public void run() {
+	if (Config.getBoolean("SchedulerBenchmark.run", false))
+	    SchedulerBenchmark.run();
+	if (Config.getBoolean("CommunicatorBenchmark.run", false))
+	    CommunicatorBenchmark.run();
+	if (Config.getBoolean("AlarmBenchmark.run", false))
+	    AlarmBenchmark.run();
     }
 
     /**
-     * Terminate this kernel. Never returns.
+     * Terminate this kernel. Never returns. If <tt>SchedulingMetrics.dump</tt>
+     * is set in <tt>nachos.conf</tt>, first prints the scheduling metrics as
+     * JSON.
      */
     public void terminate() {
+	if (Config.getBoolean("SchedulingMetrics.dump", false))
+	    System.out.println(SchedulingMetrics.toJSON());
+
 	Machine.halt();
     }
 
@@ -83,4 +104,6 @@ public class ThreadedKernel extends Kernel {
     private static Communicator dummy5 = null;
     private static Rider dummy6 = null;
     private static ElevatorController dummy7 = null;
+    private static FairScheduler dummy8 = null;
+    private static DeadlineScheduler dummy9 = null;
 }
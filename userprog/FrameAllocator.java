@@ -0,0 +1,303 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+
+/**
+ * Keeps track of which physical page frames are free. Free frames are marked
+ * in a bitmap, one bit per frame, so finding a free frame tests 64 frames at
+ * a time, and no objects are allocated for the frames themselves.
+ *
+ * <p>
+ * The frames are divided into <i>zones</i> of consecutive frames, each with
+ * its own free count and search hint. Callers name the zone they would like
+ * frames from, for example the zone belonging to the processor a process
+ * runs on; when that zone is exhausted, frames are taken from the others.
+ *
+ * <p>
+ * All methods disable interrupts while they update the bitmap.
+ */
+public class FrameAllocator {
+    /**
+     * Allocate a new frame allocator with every frame free.
+     *
+     * @param	numFrames	the number of physical page frames.
+     * @param	numZones	the number of zones to divide them into.
+     */
+    public FrameAllocator(int numFrames, int numZones) {
+	Lib.assertTrue(numFrames > 0 && numZones > 0 && numZones <= numFrames);
+
+	this.numFrames = numFrames;
+	this.numZones = numZones;
+
+	free = new long[(numFrames + 63) / 64];
+	for (int frame=0; frame<numFrames; frame++)
+	    free[frame >> 6] |= 1L << frame;
+
+	zoneStart = new int[numZones+1];
+	zoneFree = new int[numZones];
+	zoneHint = new int[numZones];
+	for (int zone=0; zone<numZones; zone++) {
+	    zoneStart[zone] = (int) ((long) numFrames * zone / numZones);
+	    zoneHint[zone] = zoneStart[zone];
+	}
+	zoneStart[numZones] = numFrames;
+	for (int zone=0; zone<numZones; zone++)
+	    zoneFree[zone] = zoneStart[zone+1] - zoneStart[zone];
+
+	numFree = numFrames;
+    }
+
+    /**
+     * Allocate one frame, preferably from the specified zone.
+     *
+     * @param	zone	the preferred zone.
+     * @return	the frame number, or -1 if no frame is free.
+     */
+    public int allocate(int zone) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	int frame = -1;
+	for (int i=0; i<numZones && frame == -1; i++)
+	    frame = take((zone + i) % numZones);
+
+	Machine.interrupt().restore(intStatus);
+	return frame;
+    }
+
+    /**
+     * Allocate <i>count</i> frames, preferably from the specified zone, and
+     * store their numbers at the start of <i>frames</i>. Either all of the
+     * frames are allocated or none are.
+     *
+     * @param	frames	the array in which to store the frame numbers.
+     * @param	count	the number of frames to allocate.
+     * @param	zone	the preferred zone.
+     * @return	<tt>true</tt> if the frames were allocated, or <tt>false</tt>
+     *		if not enough frames are free.
+     */
+    public boolean allocate(int[] frames, int count, int zone) {
+	Lib.assertTrue(count >= 0 && count <= frames.length);
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	boolean allocated = (count <= numFree);
+	if (allocated) {
+	    int n = 0;
+	    for (int i=0; i<numZones; i++) {
+		int z = (zone + i) % numZones;
+		while (n < count && zoneFree[z] > 0)
+		    frames[n++] = take(z);
+	    }
+	    Lib.assertTrue(n == count);
+	}
+
+	Machine.interrupt().restore(intStatus);
+	return allocated;
+    }
+
+    /**
+     * Allocate <i>count</i> physically contiguous frames.
+     *
+     * @param	count	the number of frames to allocate. Must be positive.
+     * @return	the first frame of the run, or -1 if there is no run of
+     *		<i>count</i> free frames.
+     */
+    public int allocateContiguous(int count) {
+	Lib.assertTrue(count > 0);
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	int first = -1;
+	int run = 0;
+	for (int frame=0; frame<numFrames && run < count; ) {
+	    long word = free[frame >> 6] >>> (frame & 63);
+	    if (word == 0) {
+		// the rest of this word is allocated
+		run = 0;
+		frame = (frame | 63) + 1;
+	    }
+	    else if ((word & 1) == 0) {
+		run = 0;
+		frame += Long.numberOfTrailingZeros(word);
+	    }
+	    else {
+		if (run == 0)
+		    first = frame;
+		run++;
+		frame++;
+	    }
+	}
+
+	if (run < count) {
+	    first = -1;
+	}
+	else {
+	    for (int frame=first; frame<first+count; frame++)
+		mark(frame);
+	}
+
+	Machine.interrupt().restore(intStatus);
+	return first;
+    }
+
+    /**
+     * Return a frame to the free pool.
+     *
+     * @param	frame	the frame to free. Must be allocated.
+     */
+    public void free(int frame) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	release(frame);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Return the first <i>count</i> frames in <i>frames</i> to the free pool.
+     *
+     * @param	frames	the frames to free. All must be allocated.
+     * @param	count	the number of frames to free.
+     */
+    public void free(int[] frames, int count) {
+	Lib.assertTrue(count >= 0 && count <= frames.length);
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	for (int i=0; i<count; i++)
+	    release(frames[i]);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Return the number of free frames.
+     *
+     * @return	the number of free frames.
+     */
+    public int getNumFree() {
+	return numFree;
+    }
+
+    /**
+     * Return the number of zones.
+     *
+     * @return	the number of zones.
+     */
+    public int getNumZones() {
+	return numZones;
+    }
+
+    /**
+     * Return the zone containing the specified frame.
+     *
+     * @param	frame	the frame number.
+     * @return	the zone containing the frame.
+     */
+    public int zoneOf(int frame) {
+	Lib.assertTrue(frame >= 0 && frame < numFrames);
+
+	int zone = (int) ((long) frame * numZones / numFrames);
+	while (frame < zoneStart[zone])
+	    zone--;
+	while (frame >= zoneStart[zone+1])
+	    zone++;
+	return zone;
+    }
+
+    /**
+     * Test if this module is working.
+     */
+    public static void selfTest() {
+	FrameAllocator allocator = new FrameAllocator(200, 3);
+
+	int[] frames = new int[150];
+	Lib.assertTrue(allocator.allocate(frames, 150, 1));
+	Lib.assertTrue(allocator.zoneOf(frames[0]) == 1);
+	Lib.assertTrue(!allocator.allocate(frames, 51, 0));
+	Lib.assertTrue(allocator.getNumFree() == 50);
+
+	// free every other allocated frame; the longest free run is now the
+	// unallocated part of zone 0 plus the first frame of zone 1
+	for (int i=0; i<150; i+=2)
+	    allocator.free(frames[i]);
+	Lib.assertTrue(allocator.allocateContiguous(52) == -1);
+	Lib.assertTrue(allocator.allocateContiguous(51) == 16);
+
+	for (int i=16; i<16+51; i++)
+	    allocator.free(i);
+	for (int i=1; i<150; i+=2)
+	    allocator.free(frames[i]);
+	Lib.assertTrue(allocator.getNumFree() == 200);
+
+	Lib.assertTrue(allocator.allocateContiguous(130) == 0);
+	Lib.assertTrue(allocator.zoneOf(allocator.allocate(2)) == 2);
+    }
+
+    /**
+     * Take the lowest free frame in a zone at or after its hint, wrapping
+     * around to the start of the zone. Called with interrupts disabled.
+     *
+     * @return	the frame, or -1 if the zone has no free frames.
+     */
+    private int take(int zone) {
+	if (zoneFree[zone] == 0)
+	    return -1;
+
+	int frame = find(zoneHint[zone], zoneStart[zone+1]);
+	if (frame == -1)
+	    frame = find(zoneStart[zone], zoneHint[zone]);
+	Lib.assertTrue(frame != -1);
+
+	mark(frame);
+	zoneHint[zone] = frame+1 < zoneStart[zone+1] ? frame+1 : zoneStart[zone];
+	return frame;
+    }
+
+    /**
+     * Return the lowest free frame in <tt>[start, end)</tt>, or -1.
+     */
+    private int find(int start, int end) {
+	for (int frame=start; frame<end; ) {
+	    long word = free[frame >> 6] >>> (frame & 63);
+	    if (word != 0) {
+		frame += Long.numberOfTrailingZeros(word);
+		return frame < end ? frame : -1;
+	    }
+	    frame = (frame | 63) + 1;
+	}
+	return -1;
+    }
+
+    private void mark(int frame) {
+	long bit = 1L << frame;
+	Lib.assertTrue((free[frame >> 6] & bit) != 0);
+
+	free[frame >> 6] &= ~bit;
+	zoneFree[zoneOf(frame)]--;
+	numFree--;
+    }
+
+    private void release(int frame) {
+	Lib.assertTrue(frame >= 0 && frame < numFrames);
+
+	long bit = 1L << frame;
+	Lib.assertTrue((free[frame >> 6] & bit) == 0);
+
+	free[frame >> 6] |= bit;
+	zoneFree[zoneOf(frame)]++;
+	numFree++;
+    }
+
+    private int numFrames;
+    private int numZones;
+    private int numFree;
+
+    /** One bit per frame, set if the frame is free. */
+    private long[] free;
+    /** The first frame of each zone, followed by <tt>numFrames</tt>. */
+    private int[] zoneStart;
+    private int[] zoneFree;
+    /** Where to start looking for a free frame in each zone. */
+    private int[] zoneHint;
+}
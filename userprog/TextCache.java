@@ -0,0 +1,99 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+
+import java.util.Arrays;
+import java.util.Hashtable;
+
+/**
+ * Keeps track of the physical pages holding the read-only sections of the
+ * executables being run, so that processes running the same executable can
+ * share those pages instead of each loading its own copy. An executable is
+ * identified by a key made from its name and length.
+ *
+ * <p>
+ * For each executable in use, the cache holds an array with one element for
+ * each virtual page of the processes running it: the physical page holding
+ * that page of the executable, or -1 if there is none. The processes fill in
+ * and use the array themselves; the cache only counts the processes using
+ * each executable, and forgets the executable when the last one is done.
+ *
+ * <p>
+ * All methods disable interrupts while they update the cache.
+ */
+public class TextCache {
+    /**
+     * Allocate a new, empty text cache.
+     */
+    public TextCache() {
+    }
+
+    /**
+     * Return the key identifying an executable.
+     *
+     * @param	name	the name of the executable.
+     * @param	length	the length of the executable, in bytes.
+     * @return	the key.
+     */
+    public static String keyOf(String name, int length) {
+	return name + ":" + length;
+    }
+
+    /**
+     * Start using an executable, and return its array of shared physical
+     * pages. Every call must be matched by a call to <tt>close()</tt>.
+     *
+     * @param	key	the key identifying the executable.
+     * @param	numPages	the number of virtual pages of the processes
+     *				running it.
+     * @return	the physical page holding each virtual page, or -1.
+     */
+    public int[] open(String key, int numPages) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	Entry entry = entries.get(key);
+	if (entry == null) {
+	    entry = new Entry(numPages);
+	    entries.put(key, entry);
+	}
+	Lib.assertTrue(entry.frames.length == numPages);
+	entry.numUsers++;
+
+	Machine.interrupt().restore(intStatus);
+	return entry.frames;
+    }
+
+    /**
+     * Stop using an executable.
+     *
+     * @param	key	the key identifying the executable.
+     * @return	<tt>true</tt> if this was the last user, in which case the
+     *		cache has forgotten the executable, and any physical pages
+     *		still in its array belong to the caller.
+     */
+    public boolean close(String key) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	Entry entry = entries.get(key);
+	Lib.assertTrue(entry != null && entry.numUsers > 0);
+
+	boolean last = (--entry.numUsers == 0);
+	if (last)
+	    entries.remove(key);
+
+	Machine.interrupt().restore(intStatus);
+	return last;
+    }
+
+    private static class Entry {
+	Entry(int numPages) {
+	    frames = new int[numPages];
+	    Arrays.fill(frames, -1);
+	}
+
+	int[] frames;
+	int numUsers = 0;
+    }
+
+    private Hashtable<String, Entry> entries = new Hashtable<String, Entry>();
+}
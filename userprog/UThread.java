@@ -57,6 +57,16 @@ public class UThread extends KThread {
 	process.restoreState();
     }
 
+    /**
+     * User threads keep the TLB contents of their process warm by running on
+     * the same processor when they can.
+     *
+     * @return	<tt>true</tt>.
+     */
+    protected boolean hasCPUAffinity() {
+	return true;
+    }
+
     /**
      * Storage for the user register set.
      *
@@ -4,7 +4,6 @@ import nachos.machine.*;
 import nachos.threads.*;
 import nachos.userprog.*;
 
-import java.util.LinkedList;
 import java.util.Hashtable;
 
 /**
@@ -31,9 +30,9 @@ public class UserKernel extends ThreadedKernel {
         public void run() { exceptionHandler(); }
         });
 
-    for(int i = 0; i < Machine.processor().getNumPhysPages(); i++) {
-        pages.add(i);
-    }
+    frames = new FrameAllocator(Machine.processor().getNumPhysPages(),
+        Config.getInteger("UserKernel.numZones", 1));
+    textCache = new TextCache();
     
     }
 
@@ -42,6 +41,7 @@ public class UserKernel extends ThreadedKernel {
      */ 
     public void selfTest() {
     super.selfTest();
+    FrameAllocator.selfTest();
 
     
     
@@ -57,21 +57,22 @@ public class UserKernel extends ThreadedKernel {
     
     }
 
+    /**
+     * Allocate a free physical page.
+     *
+     * @return  the physical page number, or -1 if no page is free.
+     */
     public static int getPage() {
-        Machine.interrupt().disable();
-        int ret = -1;
-        if(!pages.isEmpty()) {
-            ret = pages.removeFirst();
-        }
-        
-        Machine.interrupt().enable();
-        return ret;
+        return frames.allocate(0);
     }
 
+    /**
+     * Return a physical page to the free pool.
+     *
+     * @param   pagenum the physical page number.
+     */
     public static void addPage(int pagenum) {
-        Machine.interrupt().disable();
-        pages.addFirst(pagenum);
-        Machine.interrupt().enable();
+        frames.free(pagenum);
     }
 
     /**
@@ -118,6 +119,7 @@ public class UserKernel extends ThreadedKernel {
     super.run();
 
     UserProcess process = UserProcess.newUserProcess();
+    rootProcess = process;
     
     String shellProgram = Machine.getShellProgramName();    
     Lib.assertTrue(process.execute(shellProgram, new String[] { }));
@@ -138,6 +140,17 @@ public class UserKernel extends ThreadedKernel {
     // dummy variables to make javac smarter
     private static Coff dummy1 = null;
 
-    private static LinkedList<Integer> pages = new LinkedList<Integer>();
+    /**
+     * The physical page frame allocator. The number of zones is given by the
+     * <tt>nachos.conf</tt> key <tt>UserKernel.numZones</tt>.
+     */
+    public static FrameAllocator frames;
+    /** The read-only pages of executables, shared between processes. */
+    public static TextCache textCache;
+    /**
+     * The process started by <tt>run()</tt>. The kernel terminates when it
+     * exits.
+     */
+    public static UserProcess rootProcess = null;
     // private Hashtable<Integer, UserProcess> processes = new Hashtable<Integer, UserProcess>()
 }
@@ -101,10 +101,32 @@ public class UserProcess {
     public String readVirtualMemoryString(int vaddr, int maxLength) {
         Lib.assertTrue(maxLength >= 0);
 
-        byte[] bytes = new byte[maxLength+1];
+        // most strings end in their first page, and can be converted in
+        // place. Translating the page may block to bring it in, but nothing
+        // else runs between the translation and the conversion, so the page
+        // cannot be replaced in between.
+        boolean intStatus = Machine.interrupt().disable();
+        TranslationEntry te = translate(vaddr, false);
+        if (te != null) {
+            byte[] memory = Machine.processor().getMemory();
+            int paddr = te.ppn*pageSize + Processor.offsetFromAddress(vaddr);
+            int end = paddr + Math.min(maxLength+1,
+                pageSize - Processor.offsetFromAddress(vaddr));
+
+            for (int i=paddr; i<end; i++) {
+                if (memory[i] == 0) {
+                    String string = new String(memory, paddr, i-paddr);
+                    Machine.interrupt().restore(intStatus);
+                    return string;
+                }
+            }
+        }
+        Machine.interrupt().restore(intStatus);
 
+        // a string that crosses a page boundary is copied out; bringing in
+        // a later page may replace an earlier one
+        byte[] bytes = new byte[maxLength+1];
         int bytesRead = readVirtualMemory(vaddr, bytes);
-
         for (int length=0; length<bytesRead; length++) {
             if (bytes[length] == 0)
                 return new String(bytes, 0, length);
@@ -141,36 +163,7 @@ public class UserProcess {
      */
     public int readVirtualMemory(int vaddr, byte[] data, int offset,
         int length) {
-        Lib.assertTrue(offset >= 0 && length >= 0 && offset+length <= data.length);
-
-        byte[] memory = Machine.processor().getMemory();
-
-    // for now, just assume that virtual addresses equal physical addresses
-        // if (vaddr < 0 || vaddr >= memory.length)
-        //     return 0;
-
-        int vpn = Machine.processor().pageFromAddress(vaddr);
-
-        if(vpn >= numPages) {
-            return -1;
-        }
-
-        TranslationEntry te = pageTable[vpn];
-        if(!te.valid) {
-            return -1;
-        }
-
-        te.used = true;
-
-        int paddr = (te.ppn * pageSize) + Machine.processor().offsetFromAddress(vaddr);
-        if(paddr < 0 || paddr >= memory.length) {
-            return -1;
-        }
-
-        int amount = Math.min(length, memory.length-paddr);
-        System.arraycopy(memory, paddr, data, offset, amount);
-
-        return amount;
+        return copyVirtualMemory(vaddr, data, offset, length, false);
     }
 
     /**
@@ -202,37 +195,87 @@ public class UserProcess {
      */
     public int writeVirtualMemory(int vaddr, byte[] data, int offset,
         int length) {
+        return copyVirtualMemory(vaddr, data, offset, length, true);
+    }
+
+    /**
+     * Copy data between this process's virtual memory and an array, one page
+     * at a time. Each page is translated once, and the part of the transfer
+     * that falls in it is copied with a single <tt>System.arraycopy()</tt>.
+     * Stops at the first page that cannot be translated.
+     *
+     * @param   vaddr   the first byte of virtual memory to transfer.
+     * @param   data    the array to transfer to or from.
+     * @param   offset  the first byte of the array to transfer.
+     * @param   length  the number of bytes to transfer.
+     * @param   write   <tt>true</tt> to copy from the array to virtual memory,
+     *          <tt>false</tt> to copy from virtual memory to the array.
+     * @return  the number of bytes successfully transferred.
+     */
+    private int copyVirtualMemory(int vaddr, byte[] data, int offset,
+        int length, boolean write) {
         Lib.assertTrue(offset >= 0 && length >= 0 && offset+length <= data.length);
 
         byte[] memory = Machine.processor().getMemory();
 
-    // for now, just assume that virtual addresses equal physical addresses
-        // if (vaddr < 0 || vaddr >= memory.length)
-        //     return 0;
+        int transferred = 0;
+        while (transferred < length) {
+            // the page must not be replaced between translation and copying
+            boolean intStatus = Machine.interrupt().disable();
 
-        int vpn = Machine.processor().pageFromAddress(vaddr);
+            int addr = vaddr + transferred;
+            TranslationEntry te = translate(addr, write);
+            if (te == null) {
+                Machine.interrupt().restore(intStatus);
+                break;
+            }
 
-        if(vpn >= numPages) {
-            return -1;
-        }
+            int pageOffset = Processor.offsetFromAddress(addr);
+            int paddr = te.ppn*pageSize + pageOffset;
+            int amount = Math.min(length - transferred, pageSize - pageOffset);
 
-        TranslationEntry te = pageTable[vpn];
-        if(te.readOnly) {
-            return -1;
+            if (write)
+                System.arraycopy(data, offset+transferred, memory, paddr, amount);
+            else
+                System.arraycopy(memory, paddr, data, offset+transferred, amount);
+
+            Machine.interrupt().restore(intStatus);
+            transferred += amount;
         }
 
-        te.used = true;
-        te.dirty = true;
+        return transferred;
+    }
 
-        int paddr = te.ppn*pageSize + Machine.processor().offsetFromAddress(vaddr);
-        if(paddr < 0 || paddr >= memory.length) {
-            return -1;
-        }
+    /**
+     * Return the page table entry that maps the page containing the specified
+     * virtual address, and mark it used (and dirty, if it is about to be
+     * written). Called by the routines that access this process's virtual
+     * memory from the kernel, once for each page they touch; subclasses can
+     * override this to bring the page into memory first.
+     *
+     * @param   vaddr   a virtual address in the page to translate.
+     * @param   write   <tt>true</tt> if the page is about to be written.
+     * @return  the page table entry, or <tt>null</tt> if the address is not
+     *          mapped, or if <i>write</i> is <tt>true</tt> and the page is
+     *          read-only.
+     */
+    protected TranslationEntry translate(int vaddr, boolean write) {
+        if (vaddr < 0 || pageTable == null)
+            return null;
+
+        int vpn = Processor.pageFromAddress(vaddr);
+        if (vpn >= numPages)
+            return null;
 
-        int amount = Math.min(length, memory.length-paddr);
-        System.arraycopy(data, offset, memory, paddr, amount);
+        TranslationEntry te = pageTable[vpn];
+        if (te == null || !te.valid || (write && te.readOnly))
+            return null;
+
+        te.used = true;
+        if (write)
+            te.dirty = true;
 
-        return amount;
+        return te;
     }
 
     /**
@@ -262,6 +305,8 @@ public class UserProcess {
             Lib.debug(dbgProcess, "\tcoff load failed");
             return false;
         }
+        executableName = name;
+        textKey = TextCache.keyOf(name, executable.length());
 
     // make sure the sections are contiguous and start at page 0
         numPages = 0;
@@ -299,13 +344,11 @@ public class UserProcess {
     // and finally reserve 1 page for arguments
         numPages++;
 
-        pageTable = new TranslationEntry[numPages];
-        for(int i = 0; i < numPages; i++) {
-            pageTable[i] = new TranslationEntry(i, UserKernel.getPage(), true, false, false, false);
-        }
-
-        if (!loadSections())
+        textFrames = UserKernel.textCache.open(textKey, numPages);
+        if (!loadSections()) {
+            UserKernel.textCache.close(textKey);
             return false;
+        }
 
     // store arguments in last page
         int entryOffset = (numPages-1)*pageSize;
@@ -328,20 +371,157 @@ public class UserProcess {
         return true;
     }
 
+    /**
+     * Make this process a copy of <i>parent</i>, which is in the middle of a
+     * <tt>fork()</tt> syscall. This process gets its own handle on the
+     * parent's executable, copies of the parent's open disk files, and the
+     * parent's registers, set up to return 0 from the syscall. Its memory is
+     * copied by <tt>forkSections()</tt>.
+     *
+     * @param   parent  the process to copy.
+     * @return  <tt>true</tt> if the copy was successful.
+     */
+    private boolean forkFrom(UserProcess parent) {
+        OpenFile executable =
+            ThreadedKernel.fileSystem.open(parent.executableName, false);
+        if (executable == null)
+            return false;
+
+        try {
+            coff = new Coff(executable);
+        }
+        catch (EOFException e) {
+            executable.close();
+            return false;
+        }
+        executableName = parent.executableName;
+        textKey = parent.textKey;
+
+        numPages = parent.numPages;
+        initialPC = parent.initialPC;
+        initialSP = parent.initialSP;
+        argc = parent.argc;
+        argv = parent.argv;
+
+        textFrames = UserKernel.textCache.open(textKey, numPages);
+        if (!forkSections(parent)) {
+            UserKernel.textCache.close(textKey);
+            return false;
+        }
+
+        // disk files are reopened, so closing one does not close the other
+        for (int i=2; i<files.length; i++) {
+            if (parent.files[i] != null) {
+                files[i] = ThreadedKernel.fileSystem.open(parent.files[i].getName(), false);
+                if (files[i] != null)
+                    files[i].seek(parent.files[i].tell());
+            }
+        }
+
+        // the child returns 0 from fork() and carries on after the syscall
+        Processor processor = Machine.processor();
+        forkRegisters = new int[Processor.numUserRegisters];
+        for (int i=0; i<forkRegisters.length; i++)
+            forkRegisters[i] = processor.readRegister(i);
+        forkRegisters[Processor.regV0] = 0;
+        forkRegisters[Processor.regPC] = forkRegisters[Processor.regNextPC];
+        forkRegisters[Processor.regNextPC] += 4;
+
+        return true;
+    }
+
+    /**
+     * Give this process a copy of the memory of <i>parent</i>, whose page
+     * table and executable this process already shares the layout of. Pages
+     * the parent shares through the text cache are shared by this process
+     * too; every other page is copied into a newly allocated physical page.
+     * Subclasses can override this to share more pages.
+     *
+     * @param   parent  the process whose memory to copy.
+     * @return  <tt>true</tt> if the memory was copied.
+     */
+    protected boolean forkSections(UserProcess parent) {
+        boolean[] shared = new boolean[numPages];
+        int numShared = 0;
+        for (int i=0; i<numPages; i++) {
+            if (parent.pageTable[i].ppn == textFrames[i]) {
+                shared[i] = true;
+                numShared++;
+            }
+        }
+
+        int[] frames = new int[numPages - numShared];
+        int zone = id % UserKernel.frames.getNumZones();
+        if (!UserKernel.frames.allocate(frames, frames.length, zone)) {
+            coff.close();
+            Lib.debug(dbgProcess, "\tinsufficient physical memory");
+            return false;
+        }
+
+        byte[] memory = Machine.processor().getMemory();
+        pageTable = new TranslationEntry[numPages];
+        int next = 0;
+        for (int i=0; i<numPages; i++) {
+            TranslationEntry from = parent.pageTable[i];
+            if (shared[i]) {
+                pageTable[i] = new TranslationEntry(from);
+                pageTable[i].used = pageTable[i].dirty = false;
+                continue;
+            }
+
+            pageTable[i] = new TranslationEntry(i, frames[next++], true,
+                from.readOnly, false, false);
+            System.arraycopy(memory, from.ppn*pageSize,
+                memory, pageTable[i].ppn*pageSize, pageSize);
+        }
+
+        return true;
+    }
+
     /**
      * Allocates memory for this process, and loads the COFF sections into
-     * memory. If this returns successfully, the process will definitely be
-     * run (this is the last step in process initialization that can fail).
+     * memory. Read-only pages that another process running the same
+     * executable has already loaded are shared through
+     * <tt>textFrames</tt> instead; read-only pages this process loads itself
+     * are recorded there for the processes that come after it. If this
+     * returns successfully, the process will definitely be run (this is the
+     * last step in process initialization that can fail).
      *
      * @return  <tt>true</tt> if the sections were successfully loaded.
      */
     protected boolean loadSections() {
-        if (numPages > Machine.processor().getNumPhysPages()) {
+        boolean[] shared = new boolean[numPages];
+        int numShared = 0;
+        for (int s=0; s<coff.getNumSections(); s++) {
+            CoffSection section = coff.getSection(s);
+            if (!section.isReadOnly())
+                continue;
+
+            for (int i=0; i<section.getLength(); i++) {
+                int vpn = section.getFirstVPN()+i;
+                if (textFrames[vpn] != -1) {
+                    shared[vpn] = true;
+                    numShared++;
+                }
+            }
+        }
+
+        // allocate every other frame of the image at once, or none of them
+        int[] frames = new int[numPages - numShared];
+        int zone = id % UserKernel.frames.getNumZones();
+        if (!UserKernel.frames.allocate(frames, frames.length, zone)) {
             coff.close();
             Lib.debug(dbgProcess, "\tinsufficient physical memory");
             return false;
         }
 
+        pageTable = new TranslationEntry[numPages];
+        int next = 0;
+        for (int i=0; i<numPages; i++) {
+            int ppn = shared[i] ? textFrames[i] : frames[next++];
+            pageTable[i] = new TranslationEntry(i, ppn, true, false, false, false);
+        }
+
     // load sections
         for (int s=0; s<coff.getNumSections(); s++) {
             CoffSection section = coff.getSection(s);
@@ -357,7 +537,14 @@ public class UserProcess {
 
                 TranslationEntry te = pageTable[vpn];
                 te.readOnly = section.isReadOnly();
+                if (shared[vpn])
+                    continue;
+
                 section.loadPage(i, te.ppn);
+
+                // another process may have loaded the page while we blocked
+                if (te.readOnly && textFrames[vpn] == -1)
+                    textFrames[vpn] = te.ppn;
             }
         }
 
@@ -365,15 +552,31 @@ public class UserProcess {
     }
 
     /**
-     * Release any resources allocated by <tt>loadSections()</tt>.
+     * Release any resources allocated by <tt>loadSections()</tt>. Pages
+     * shared through the text cache are freed by the last process using
+     * them.
      */
     protected void unloadSections() {
         coff.close();
+        int[] frames = new int[numPages];
+        int count = 0;
         for(int i = 0; i < numPages; i++) {
-            UserKernel.addPage(pageTable[i].ppn);
-            pageTable[i] = null;
+            if(pageTable[i].ppn != textFrames[i]) {
+                frames[count++] = pageTable[i].ppn;
+            }
+        }
+        UserKernel.frames.free(frames, count);
+        if(UserKernel.textCache.close(textKey)) {
+            count = 0;
+            for(int i = 0; i < numPages; i++) {
+                if(textFrames[i] != -1) {
+                    frames[count++] = textFrames[i];
+                }
+            }
+            UserKernel.frames.free(frames, count);
         }
         pageTable = null;
+        textFrames = null;
     }    
 
     /**
@@ -381,11 +584,19 @@ public class UserProcess {
      * program loaded into this process. Set the PC register to point at the
      * start function, set the stack pointer register to point at the top of
      * the stack, set the A0 and A1 registers to argc and argv, respectively,
-     * and initialize all other registers to 0.
+     * and initialize all other registers to 0. A process created by
+     * <tt>fork()</tt> instead starts with its parent's registers.
      */
     public void initRegisters() {
         Processor processor = Machine.processor();
 
+        if (forkRegisters != null) {
+            for (int i=0; i<Processor.numUserRegisters; i++)
+                processor.writeRegister(i, forkRegisters[i]);
+            forkRegisters = null;
+            return;
+        }
+
     // by default, everything's 0
         for (int i=0; i<processor.numUserRegisters; i++)
             processor.writeRegister(i, 0);
@@ -423,14 +634,14 @@ public class UserProcess {
                 handleClose(i);
             }
         }
-        for(int j = 0; j < parents_child.size(); j++){
-            parents_child.get(j).parent = this.parent;
+        for(UserProcess child : parents_child.values()){
+            child.parent = this.parent;
         }
         exit_status = a0;
         unloadSections();
         finished.V();
         total_processes.remove(a0);
-        if(id==0){
+        if(this == UserKernel.rootProcess){
             Kernel.kernel.terminate();
         }
         UThread.currentThread().finish();
@@ -456,7 +667,7 @@ public class UserProcess {
         }
 
         UserProcess child = UserProcess.newUserProcess();   // make new userprocess call child
-        child.current_PID = random_PID;         //assign random pid to it
+        child.current_PID = child.id;           //every process has its own id
         parents_child.put(child.current_PID, child);            //add child to this process's child linked list
         
         if(!child.execute(file, child_argv)) {
@@ -467,6 +678,27 @@ public class UserProcess {
         return child.current_PID;
     }
     
+    /**
+     * Handle the fork() system call. The child is a copy of this process,
+     * and returns 0 from the syscall; this process gets the child's process
+     * ID, or -1 if the copy could not be made.
+     */
+    private int handleFork() {
+        UserProcess child = UserProcess.newUserProcess();
+        child.current_PID = child.id;
+        parents_child.put(child.current_PID, child);
+
+        if (!child.forkFrom(this)) {
+            parents_child.remove(child.current_PID);
+            child.exit_status = -1;
+            return -1;
+        }
+
+        new UThread(child).setName(executableName).fork();
+
+        return child.current_PID;
+    }
+
     /**
      * Handle the join() system call. 
      */
@@ -537,31 +769,64 @@ public class UserProcess {
     }
     
     /**
-     * Handle the read() system call. 
+     * Handle the read() system call. The data is moved through
+     * <tt>ioBuffer</tt> one page at a time, so a large read does not need a
+     * buffer of its own. Stops early when the file returns fewer bytes than
+     * asked for. If a page fails after some bytes were read, returns the
+     * number of bytes copied so far, since the file position has already
+     * moved past them; returns -1 only if nothing was read.
      */
     private int handleRead(int a0, int a1, int a2) {
-        byte[] buf = new byte[a2];
-        int numread;
-        if(a0 < 0 || a0 >= files.length) {
+        if(a0 < 0 || a0 >= files.length || files[a0] == null || a2 < 0) {
             return -1;
         }
-        numread = files[a0].read(buf, 0, a2);
-        writeVirtualMemory(a1, buf);
-        return numread;
+        int total = 0;
+        while(total < a2) {
+            int chunk = Math.min(a2 - total, ioBuffer.length);
+            int numread = files[a0].read(ioBuffer, 0, chunk);
+            if(numread < 0) {
+                return (total > 0) ? total : -1;
+            }
+            int copied = writeVirtualMemory(a1 + total, ioBuffer, 0, numread);
+            total += copied;
+            if(copied != numread) {
+                return (total > 0) ? total : -1;
+            }
+            if(numread < chunk) {
+                break;
+            }
+        }
+        return total;
     }
     
     /**
-     * Handle the write() system call. 
+     * Handle the write() system call. The data is moved through
+     * <tt>ioBuffer</tt> one page at a time, like <tt>handleRead()</tt>. If a
+     * page fails after some bytes were written, returns the number of bytes
+     * written so far, since the file already holds them; returns -1 only if
+     * nothing was written.
      */
     private int handleWrite(int a0, int a1, int a2) {
-        byte[] buf = new byte[a2];
-        if(a0 < 0 || a0 >= files.length) {
+        if(a0 < 0 || a0 >= files.length || files[a0] == null || a2 < 0) {
             return -1;
         }
-        if(readVirtualMemory(a1, buf) == -1) {
-            return -1;
+        int total = 0;
+        while(total < a2) {
+            int chunk = Math.min(a2 - total, ioBuffer.length);
+            int copied = readVirtualMemory(a1 + total, ioBuffer, 0, chunk);
+            int numwritten = (copied > 0) ? files[a0].write(ioBuffer, 0, copied) : 0;
+            if(numwritten < 0) {
+                return (total > 0) ? total : -1;
+            }
+            total += numwritten;
+            if(copied != chunk) {
+                return (total > 0) ? total : -1;
+            }
+            if(numwritten < chunk) {
+                break;
+            }
         }
-        return files[a0].write(buf, 0, a2);
+        return total;
     }
     
     /**
@@ -612,7 +877,8 @@ public class UserProcess {
         syscallRead = 6,
         syscallWrite = 7,
         syscallClose = 8,
-        syscallUnlink = 9;
+        syscallUnlink = 9,
+        syscallFork = 13;
 
     /**
      * Handle a syscall exception. Called by <tt>handleException()</tt>. The
@@ -633,6 +899,7 @@ public class UserProcess {
      *                              </tt></td></tr>
      * <tr><td>8</td><td><tt>int  close(int fd);</tt></td></tr>
      * <tr><td>9</td><td><tt>int  unlink(char *name);</tt></td></tr>
+     * <tr><td>13</td><td><tt>int  fork();</tt></td></tr>
      * </table>
      * 
      * @param   syscall the syscall number.
@@ -667,6 +934,8 @@ public class UserProcess {
                 return handleClose(a0);
             case syscallUnlink:
                 return handleUnlink(a0);
+            case syscallFork:
+                return handleFork();
 
 
             default:
@@ -710,16 +979,30 @@ public class UserProcess {
 
     /** This process's page table. */
     protected TranslationEntry[] pageTable;
+    /**
+     * The physical pages holding the read-only pages of this process's
+     * executable that are shared through <tt>UserKernel.textCache</tt>, or
+     * -1 for each page that is not.
+     */
+    protected int[] textFrames;
     /** The number of contiguous pages occupied by the program. */
     protected int numPages;
 
     private OpenFile[] files = new OpenFile[16];
+    /** Bounce buffer for moving data between files and user memory. */
+    private byte[] ioBuffer = new byte[pageSize];
 
     /** The number of pages in the program's stack. */
     protected final int stackPages = 8;
 
     private int initialPC, initialSP;
     private int argc, argv;
+    /** The name of the executable, so that a forked child can open it. */
+    private String executableName;
+    /** The key of the executable in <tt>UserKernel.textCache</tt>. */
+    protected String textKey;
+    /** The registers a forked child starts with, until it first runs. */
+    private int[] forkRegisters;
 
     private static final int pageSize = Processor.pageSize;
     private static final char dbgProcess = 'a';
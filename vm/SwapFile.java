@@ -0,0 +1,178 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+/**
+ * The backing store for dirty pages that have been evicted from memory. The
+ * swap file is divided into page-sized slots, which are allocated from a
+ * bitmap. Runs of consecutive slots can be allocated at once, so that
+ * neighboring pages of a process can be written out, and read back in, with a
+ * single operation. A slot can be shared by a process and the children it
+ * forks; each slot has a reference count, and is only freed when the last
+ * process using it frees it.
+ *
+ * <p>
+ * The swap file is opened through <tt>ThreadedKernel.fileSystem</tt> and is
+ * removed by <tt>close()</tt>. Reads and writes block, so callers serialize
+ * them with <tt>VMKernel.vmLock</tt>.
+ */
+public class SwapFile {
+    /**
+     * Create a swap file.
+     *
+     * @param	name	the name of the file.
+     * @param	numSlots	the number of pages the file can hold.
+     * @param	clusterSize	the largest number of pages read or written at
+     *				once.
+     */
+    public SwapFile(String name, int numSlots, int clusterSize) {
+	Lib.assertTrue(clusterSize > 0);
+
+	this.name = name;
+	this.clusterSize = clusterSize;
+
+	file = ThreadedKernel.fileSystem.open(name, true);
+	Lib.assertTrue(file != null);
+
+	// a bitmap allocator works as well for slots as for frames
+	slots = new FrameAllocator(numSlots, 1);
+	slotRefCounts = new int[numSlots];
+	buffer = new byte[clusterSize*pageSize];
+    }
+
+    /**
+     * Allocate <i>count</i> consecutive slots.
+     *
+     * @param	count	the number of slots, at most the cluster size.
+     * @return	the first slot, or -1 if there is no run of <i>count</i> free
+     *		slots.
+     */
+    public int allocate(int count) {
+	Lib.assertTrue(count > 0 && count <= clusterSize);
+
+	int first =
+	    (count == 1) ? slots.allocate(0) : slots.allocateContiguous(count);
+	if (first != -1) {
+	    for (int slot=first; slot<first+count; slot++)
+		slotRefCounts[slot] = 1;
+	}
+
+	return first;
+    }
+
+    /**
+     * Add a reference to an allocated slot, for another process that holds
+     * the same page.
+     *
+     * @param	slot	the slot to share.
+     */
+    public void share(int slot) {
+	Lib.assertTrue(slotRefCounts[slot] > 0);
+
+	slotRefCounts[slot]++;
+    }
+
+    /**
+     * Test whether more than one process holds a reference to a slot. A
+     * shared slot must not be overwritten.
+     *
+     * @param	slot	the slot to test.
+     * @return	<tt>true</tt> if the slot is shared.
+     */
+    public boolean isShared(int slot) {
+	return slotRefCounts[slot] > 1;
+    }
+
+    /**
+     * Drop a reference to a slot, and free it if it was the last one.
+     *
+     * @param	slot	the slot to free.
+     */
+    public void free(int slot) {
+	Lib.assertTrue(slotRefCounts[slot] > 0);
+
+	if (--slotRefCounts[slot] == 0)
+	    slots.free(slot);
+    }
+
+    /**
+     * Read the pages in consecutive slots into physical pages, with one read.
+     *
+     * @param	slot	the first slot to read.
+     * @param	ppns	the physical pages to read them into.
+     * @param	offset	the index in <i>ppns</i> of the physical page for the
+     *			first slot.
+     * @param	count	the number of pages to read, at most the cluster size.
+     */
+    public void read(int slot, int[] ppns, int offset, int count) {
+	Lib.assertTrue(count > 0 && count <= clusterSize);
+
+	int amount = file.read(slot*pageSize, buffer, 0, count*pageSize);
+	Lib.assertTrue(amount == count*pageSize);
+
+	byte[] memory = Machine.processor().getMemory();
+	for (int i=0; i<count; i++) {
+	    System.arraycopy(buffer, i*pageSize,
+			     memory, ppns[offset+i]*pageSize, pageSize);
+	}
+
+	Machine.stats().numSwapReads++;
+	Machine.stats().numSwapPagesRead += count;
+    }
+
+    /**
+     * Return the buffer in which a cluster of pages is gathered before it is
+     * written. Holds <tt>getClusterSize()</tt> pages, and is also used by
+     * <tt>read()</tt>.
+     *
+     * @return	the cluster buffer.
+     */
+    public byte[] getBuffer() {
+	return buffer;
+    }
+
+    /**
+     * Return the largest number of pages read or written at once.
+     *
+     * @return	the cluster size.
+     */
+    public int getClusterSize() {
+	return clusterSize;
+    }
+
+    /**
+     * Write the first <i>count</i> pages of the cluster buffer to consecutive
+     * slots, with one write.
+     *
+     * @param	slot	the first slot to write.
+     * @param	count	the number of pages to write.
+     */
+    public void write(int slot, int count) {
+	Lib.assertTrue(count > 0 && count <= clusterSize);
+
+	int amount = file.write(slot*pageSize, buffer, 0, count*pageSize);
+	Lib.assertTrue(amount == count*pageSize);
+
+	Machine.stats().numSwapWrites++;
+	Machine.stats().numSwapPagesWritten += count;
+    }
+
+    /**
+     * Close and remove the swap file.
+     */
+    public void close() {
+	file.close();
+	ThreadedKernel.fileSystem.remove(name);
+    }
+
+    private String name;
+    private OpenFile file;
+    private FrameAllocator slots;
+    private int[] slotRefCounts;
+    private int clusterSize;
+    private byte[] buffer;
+
+    private static final int pageSize = Processor.pageSize;
+}
@@ -0,0 +1,102 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+/**
+ * A paging benchmark. Runs each of a list of user programs to completion,
+ * one at a time, under each replacement policy and with each of a list of
+ * limits on the number of resident pages, and reports the page faults,
+ * evictions, TLB misses, user ticks, prefetch hits and misses, and total
+ * ticks of every run as CSV.
+ *
+ * <p>
+ * The machine has a fixed number of physical pages, so smaller memories are
+ * simulated with <tt>VMKernel.setFrameLimit()</tt>. The benchmark runs from
+ * <tt>VMKernel.run()</tt> instead of the shell when <tt>VMBenchmark.run</tt>
+ * is <tt>true</tt>, and is configured with these <tt>nachos.conf</tt> keys:
+ *
+ * <ul>
+ * <li><tt>VMBenchmark.programs</tt>: a comma-separated list of programs.
+ * Programs joined with <tt>+</tt> are run at the same time, as one entry.
+ * <li><tt>VMBenchmark.frames</tt>: a comma-separated list of frame limits,
+ * none larger than <tt>Processor.numPhysPages</tt>.
+ * <li><tt>VMBenchmark.policies</tt>: a comma-separated list of replacement
+ * policies.
+ * </ul>
+ */
+public class VMBenchmark {
+    /**
+     * Run the benchmark as configured in <tt>nachos.conf</tt> and print the
+     * results.
+     */
+    public static void run() {
+	String[] programs =
+	    Config.getString("VMBenchmark.programs",
+			     "echo.coff,cat.coff").split(",");
+	String[] frames =
+	    Config.getString("VMBenchmark.frames", "4,5,6,8").split(",");
+	String[] policies =
+	    Config.getString("VMBenchmark.policies", "fifo,clock").split(",");
+
+	System.out.print(header);
+	for (int i=0; i<programs.length; i++) {
+	    for (int j=0; j<frames.length; j++) {
+		for (int k=0; k<policies.length; k++) {
+		    System.out.print(execute(programs[i].trim(),
+					     Integer.parseInt(frames[j].trim()),
+					     policies[k].trim()));
+		}
+	    }
+	}
+    }
+
+    /**
+     * Run a program to completion with the specified frame limit and
+     * replacement policy, and return the result as a CSV row.
+     *
+     * @param	program	the name of the executable, or the names of several
+     *			executables to run at the same time, joined with
+     *			<tt>+</tt>.
+     * @param	frameLimit	the number of pages the program may keep resident.
+     * @param	policy	the replacement policy.
+     * @return	the benchmark result.
+     */
+    public static String execute(String program, int frameLimit,
+				 String policy) {
+	VMKernel.setFrameLimit(frameLimit);
+	VMKernel.setReplacement(policy);
+
+	Stats stats = Machine.stats();
+	int startFaults = stats.numPageFaults;
+	int startEvictions = stats.numEvictions;
+	int startMisses = stats.numTLBMisses;
+	long startTicks = stats.userTicks;
+	int startHits = stats.numPrefetchHits;
+	int startPrefetchMisses = stats.numPrefetchMisses;
+	long startTotalTicks = stats.totalTicks;
+
+	String[] names = program.split("\\+");
+	VMProcess[] processes = new VMProcess[names.length];
+	for (int i=0; i<names.length; i++) {
+	    processes[i] = new VMProcess();
+	    Lib.assertTrue(processes[i].execute(names[i], new String[] { }));
+	}
+	for (int i=0; i<names.length; i++)
+	    processes[i].waitForExit();
+
+	return policy + "," + frameLimit + "," + program + ","
+	    + (stats.numPageFaults - startFaults) + ","
+	    + (stats.numEvictions - startEvictions) + ","
+	    + (stats.numTLBMisses - startMisses) + ","
+	    + (stats.userTicks - startTicks) + ","
+	    + (stats.numPrefetchHits - startHits) + ","
+	    + (stats.numPrefetchMisses - startPrefetchMisses) + ","
+	    + (stats.totalTicks - startTotalTicks) + "\n";
+    }
+
+    private static final String header =
+	"policy,frames,program,page_faults,evictions,tlb_misses,user_ticks,"
+	+ "prefetch_hits,prefetch_misses,total_ticks\n";
+}
@@ -7,6 +7,35 @@ import nachos.vm.*;
 
 /**
  * A kernel that can support multiple demand-paging user processes.
+ *
+ * <p>
+ * The kernel keeps a global inverted page table, which records for every
+ * physical page the virtual page it holds, the processes that map it, and
+ * whether it is pinned. After a <tt>fork()</tt>, a physical page can be
+ * mapped by several processes, always at the same virtual page; the table
+ * keeps a reference count for each physical page, and the processes mapping
+ * it are chained together (see <tt>VMProcess.getNextSharer()</tt>). Replacing
+ * a shared page removes it from every process that maps it. Pages of
+ * read-only sections are shared the same way by processes running the same
+ * executable: while such a page is resident, its physical page is recorded in
+ * the executable's array in <tt>UserKernel.textCache</tt>, and the record is
+ * removed when the page is replaced or freed. When a page must
+ * be brought in and no physical page is free, a
+ * victim is chosen with the policy named by the <tt>nachos.conf</tt> key
+ * <tt>VMKernel.replacement</tt>: <tt>clock</tt> (second chance, the default)
+ * or <tt>fifo</tt>. Any page that is not pinned can be replaced. Dirty pages
+ * are written to the swap file first (see <tt>SwapFile</tt>); clean pages
+ * are dropped, and brought back from the swap file, the executable, or as
+ * zeros the next time they are touched.
+ *
+ * <p>
+ * <tt>VMKernel.frameLimit</tt> limits the number of physical pages user
+ * processes may hold at once, to study paging behavior with less memory
+ * than the machine has. <tt>VMKernel.swapPages</tt> and
+ * <tt>VMKernel.swapCluster</tt> set the size of the swap file and the
+ * largest number of pages read from or written to it at once.
+ * <tt>VMKernel.maxPrefetch</tt> limits how many pages a process brings in
+ * ahead of a sequential page fault.
  */
 public class VMKernel extends UserKernel {
     /**
@@ -21,29 +50,361 @@ public class VMKernel extends UserKernel {
      */
     public void initialize(String[] args) {
 	super.initialize(args);
+
+	numFrames = Machine.processor().getNumPhysPages();
+	frameOwners = new VMProcess[numFrames];
+	frameRefCounts = new int[numFrames];
+	frameVPNs = new int[numFrames];
+	frameTextFrames = new int[numFrames][];
+	framePinned = new boolean[numFrames];
+	frameLoadTimes = new long[numFrames];
+
+	setFrameLimit(Config.getInteger("VMKernel.frameLimit", numFrames));
+	setReplacement(Config.getString("VMKernel.replacement", "clock"));
+
+	maxPrefetch = Config.getInteger("VMKernel.maxPrefetch", 4);
+	Lib.assertTrue(maxPrefetch >= 0);
+
+	vmLock = new Lock();
+
+	swap = new SwapFile(Config.getString("VMKernel.swapFile", "nachos.swp"),
+			    Config.getInteger("VMKernel.swapPages", 1024),
+			    Config.getInteger("VMKernel.swapCluster", 4));
     }
 
     /**
      * Test this kernel.
-     */	
+     */
     public void selfTest() {
 	super.selfTest();
     }
 
     /**
-     * Start running user programs.
+     * Start running user programs. If <tt>VMBenchmark.run</tt> is set in
+     * <tt>nachos.conf</tt>, runs the paging benchmark instead, and then
+     * terminates.
      */
     public void run() {
+	if (Config.getBoolean("VMBenchmark.run", false)) {
+	    VMBenchmark.run();
+	    terminate();
+	}
+
 	super.run();
     }
-    
+
     /**
      * Terminate this kernel. Never returns.
      */
     public void terminate() {
+	swap.close();
+
 	super.terminate();
     }
 
+    /**
+     * Set the replacement policy.
+     *
+     * @param	policy	<tt>clock</tt> or <tt>fifo</tt>.
+     */
+    public static void setReplacement(String policy) {
+	Lib.assertTrue(policy.equals("clock") || policy.equals("fifo"));
+
+	useClock = policy.equals("clock");
+    }
+
+    /**
+     * Limit the number of physical pages user processes may hold at once.
+     *
+     * @param	limit	the maximum number of resident pages.
+     */
+    public static void setFrameLimit(int limit) {
+	Lib.assertTrue(limit > 0 && limit <= numFrames);
+
+	frameLimit = limit;
+    }
+
+    /**
+     * Return the largest number of pages a process may bring in ahead of a
+     * page fault. At most half of the resident pages are given to the
+     * faulting page and the pages after it, so prefetching cannot push out
+     * everything else.
+     *
+     * @return	the prefetch limit.
+     */
+    static int getPrefetchLimit() {
+	return Math.max(0, Math.min(maxPrefetch, frameLimit/2 - 1));
+    }
+
+    /**
+     * Find a physical page for the specified virtual page, replacing another
+     * page if necessary, and record it in the inverted page table. The new
+     * page is pinned, so it cannot be replaced until <tt>unpinFrame()</tt> is
+     * called. Must be called with <tt>vmLock</tt> held.
+     *
+     * @param	process	the process the page belongs to.
+     * @param	vpn	the virtual page number.
+     * @return	the physical page number, or -1 if every page is in use and
+     *		none can be replaced.
+     */
+    static int allocateFrame(VMProcess process, int vpn) {
+	Lib.assertTrue(vmLock.isHeldByCurrentThread());
+
+	int ppn = -1;
+	if (numResident < frameLimit)
+	    ppn = UserKernel.getPage();
+
+	if (ppn != -1) {
+	    numResident++;
+	}
+	else {
+	    ppn = chooseVictim();
+	    if (ppn == -1)
+		return -1;
+
+	    Lib.debug(dbgVM, "\tevicting vpn " + frameVPNs[ppn] + " from ppn "
+		      + ppn);
+
+	    // the victim may have to be written out, which blocks
+	    framePinned[ppn] = true;
+	    uncacheText(ppn);
+	    VMProcess owner = frameOwners[ppn];
+	    while (owner != null) {
+		VMProcess next = owner.getNextSharer(frameVPNs[ppn]);
+		owner.evictPage(frameVPNs[ppn]);
+		owner = next;
+	    }
+	    Machine.stats().numEvictions++;
+	}
+
+	frameOwners[ppn] = process;
+	frameRefCounts[ppn] = 1;
+	process.setNextSharer(vpn, null);
+	frameVPNs[ppn] = vpn;
+	framePinned[ppn] = true;
+	frameLoadTimes[ppn] = ++numLoads;
+
+	return ppn;
+    }
+
+    /**
+     * Add a process to the processes that map a physical page. The process
+     * maps it at the same virtual page as the others. Must be called with
+     * <tt>vmLock</tt> held.
+     *
+     * @param	ppn	the physical page number.
+     * @param	process	the process that now maps it as well.
+     */
+    static void shareFrame(int ppn, VMProcess process) {
+	Lib.assertTrue(vmLock.isHeldByCurrentThread());
+	Lib.assertTrue(frameOwners[ppn] != null);
+
+	process.setNextSharer(frameVPNs[ppn], frameOwners[ppn]);
+	frameOwners[ppn] = process;
+	frameRefCounts[ppn]++;
+    }
+
+    /**
+     * Record that a physical page holds a page of a read-only section, so
+     * that other processes running the same executable can map it with
+     * <tt>shareFrame()</tt> instead of reading it again. Must be called with
+     * <tt>vmLock</tt> held.
+     *
+     * @param	ppn	the physical page number.
+     * @param	textFrames	the executable's array in
+     *				<tt>UserKernel.textCache</tt>.
+     */
+    static void cacheText(int ppn, int[] textFrames) {
+	Lib.assertTrue(vmLock.isHeldByCurrentThread());
+	Lib.assertTrue(textFrames[frameVPNs[ppn]] == -1);
+
+	textFrames[frameVPNs[ppn]] = ppn;
+	frameTextFrames[ppn] = textFrames;
+    }
+
+    /**
+     * Forget that a physical page holds a page of a read-only section, if it
+     * does.
+     */
+    private static void uncacheText(int ppn) {
+	if (frameTextFrames[ppn] != null) {
+	    frameTextFrames[ppn][frameVPNs[ppn]] = -1;
+	    frameTextFrames[ppn] = null;
+	}
+    }
+
+    /**
+     * Return the number of processes that map a physical page.
+     *
+     * @param	ppn	the physical page number.
+     * @return	the reference count of the page.
+     */
+    static int getRefCount(int ppn) {
+	return frameRefCounts[ppn];
+    }
+
+    /**
+     * Keep a physical page from being replaced until <tt>unpinFrame()</tt>
+     * is called.
+     *
+     * @param	ppn	the physical page number.
+     */
+    static void pinFrame(int ppn) {
+	Lib.assertTrue(!framePinned[ppn]);
+
+	framePinned[ppn] = true;
+    }
+
+    /**
+     * Allow a physical page to be replaced again.
+     *
+     * @param	ppn	the physical page number.
+     */
+    static void unpinFrame(int ppn) {
+	Lib.assertTrue(framePinned[ppn]);
+
+	framePinned[ppn] = false;
+    }
+
+    /**
+     * Test whether a physical page is pinned.
+     *
+     * @param	ppn	the physical page number.
+     * @return	<tt>true</tt> if the page cannot be replaced.
+     */
+    static boolean isPinned(int ppn) {
+	return framePinned[ppn];
+    }
+
+    /**
+     * Remove a process from the processes that map a physical page. When no
+     * process maps it any more, the page is removed from the inverted page
+     * table and returned to the free pool. Must be called with
+     * <tt>vmLock</tt> held.
+     *
+     * @param	process	the process that no longer maps the page.
+     * @param	ppn	the physical page number.
+     */
+    static void releaseFrame(VMProcess process, int ppn) {
+	Lib.assertTrue(vmLock.isHeldByCurrentThread());
+	Lib.assertTrue(frameRefCounts[ppn] > 0);
+
+	int vpn = frameVPNs[ppn];
+	if (frameOwners[ppn] == process) {
+	    frameOwners[ppn] = process.getNextSharer(vpn);
+	}
+	else {
+	    VMProcess owner = frameOwners[ppn];
+	    while (owner.getNextSharer(vpn) != process)
+		owner = owner.getNextSharer(vpn);
+	    owner.setNextSharer(vpn, process.getNextSharer(vpn));
+	}
+	process.setNextSharer(vpn, null);
+
+	if (--frameRefCounts[ppn] > 0)
+	    return;
+
+	uncacheText(ppn);
+	frameOwners[ppn] = null;
+	framePinned[ppn] = false;
+	numResident--;
+
+	UserKernel.addPage(ppn);
+    }
+
+    /**
+     * Choose a resident page to replace. Before looking, the used and dirty
+     * bits in the TLB are harvested into the page table of the process that
+     * owns it.
+     *
+     * @return	the physical page number of the victim, or -1 if no page can
+     *		be replaced.
+     */
+    private static int chooseVictim() {
+	VMProcess.harvestTLB();
+
+	return useClock ? clockVictim() : fifoVictim();
+    }
+
+    /**
+     * Sweep the clock hand over the physical pages, giving each page whose
+     * used bit is set a second chance by clearing the bit. A shared page has
+     * been used if any of the processes that map it has used it.
+     */
+    private static int clockVictim() {
+	// the first sweep may only clear used bits, the second must succeed
+	for (int i=0; i<2*numFrames; i++) {
+	    int ppn = clockHand;
+	    clockHand = (clockHand + 1) % numFrames;
+
+	    if (!replaceable(ppn))
+		continue;
+
+	    int vpn = frameVPNs[ppn];
+	    boolean used = false;
+	    for (VMProcess owner = frameOwners[ppn]; owner != null;
+		 owner = owner.getNextSharer(vpn)) {
+		TranslationEntry entry = owner.getEntry(vpn);
+		used |= entry.used;
+		entry.used = false;
+	    }
+
+	    if (!used)
+		return ppn;
+	}
+
+	return -1;
+    }
+
+    /**
+     * Choose the replaceable page that was brought in longest ago.
+     */
+    private static int fifoVictim() {
+	int victim = -1;
+	for (int ppn=0; ppn<numFrames; ppn++) {
+	    if (replaceable(ppn) &&
+		(victim == -1 || frameLoadTimes[ppn] < frameLoadTimes[victim]))
+		victim = ppn;
+	}
+
+	return victim;
+    }
+
+    private static boolean replaceable(int ppn) {
+	return frameOwners[ppn] != null && !framePinned[ppn];
+    }
+
+    /**
+     * Serializes page faults. Held while a page is found and brought in,
+     * which may block on file I/O.
+     */
+    static Lock vmLock;
+    /** The backing store for evicted dirty pages. */
+    static SwapFile swap;
+
+    private static int numFrames;
+    private static int frameLimit;
+    private static int maxPrefetch;
+    private static int numResident = 0;
+    private static boolean useClock;
+
+    /**
+     * The inverted page table: the first of the processes that map each
+     * physical page (or <tt>null</tt> if the page is free), how many
+     * processes map it, the virtual page it holds, the text cache array it is
+     * recorded in (or <tt>null</tt>), whether the page is pinned, and when it
+     * was brought in.
+     */
+    private static VMProcess[] frameOwners;
+    private static int[] frameRefCounts;
+    private static int[] frameVPNs;
+    private static int[][] frameTextFrames;
+    private static boolean[] framePinned;
+    private static long[] frameLoadTimes;
+    private static long numLoads = 0;
+
+    private static int clockHand = 0;
+
     // dummy variables to make javac smarter
     private static VMProcess dummy1 = null;
 
@@ -5,8 +5,54 @@ import nachos.threads.*;
 import nachos.userprog.*;
 import nachos.vm.*;
 
+import java.util.Arrays;
+
 /**
  * A <tt>UserProcess</tt> that supports demand-paging.
+ *
+ * <p>
+ * No physical memory is allocated when the program is loaded. Every page
+ * starts out invalid and is brought in the first time it is touched, either
+ * by the program (through a TLB miss) or by the kernel (through
+ * <tt>translate()</tt>): pages of COFF sections are read from the
+ * executable, and the stack and argument pages are zero-filled. When memory
+ * is full, <tt>VMKernel</tt> replaces a page of some process. A dirty page is
+ * written to the swap file, along with any dirty neighbors that fit in the
+ * same write, and is read back from there the next time it is touched; a
+ * clean page is dropped and brought back from wherever it last came from.
+ *
+ * <p>
+ * When a page fault follows on from the last one, the pages after the
+ * faulting page are brought in with it, and pages in consecutive swap slots
+ * are read with one read. The number of pages brought in ahead grows by one
+ * each time such a page is used, up to <tt>VMKernel.getPrefetchLimit()</tt>,
+ * and is halved each time one is replaced without having been used. Once it
+ * reaches zero, prefetching is off until <tt>rearmFaults</tt> (four) page
+ * faults in a row have each followed on from the last, and then starts again
+ * with a window of one page.
+ *
+ * <p>
+ * The TLB entries have no address space tag, so the TLB can only hold the
+ * translations of one process, its <i>owner</i>. Rather than flushing the TLB
+ * at every context switch, each process keeps a shadow of its TLB contents:
+ * the shadow is taken when the process is switched out, and written back to
+ * the TLB when it is switched in again, unless the TLB still holds its
+ * translations because no other process has run in between. On a miss with a
+ * full TLB, the entry to replace is chosen by a clock sweep over the TLB's
+ * used bits, which approximates LRU.
+ *
+ * <p>
+ * <tt>fork()</tt> does not copy memory. The child maps the same physical
+ * pages and swap slots as its parent, and writable pages become read-only
+ * in both. The first write to such a page, by either process, causes a
+ * read-only exception, and the writer is given a private copy of the page;
+ * the last process left mapping a shared page just gets write access back.
+ *
+ * <p>
+ * Processes running the same executable also share the resident pages of its
+ * read-only sections. A page fault on such a page maps the physical page
+ * another process already brought in, if there is one, instead of reading
+ * the executable again.
  */
 public class VMProcess extends UserProcess {
     /**
@@ -18,18 +64,56 @@ public class VMProcess extends UserProcess {
 
     /**
      * Save the state of this process in preparation for a context switch.
-     * Called by <tt>UThread.saveState()</tt>.
+     * Called by <tt>UThread.saveState()</tt>. The used and dirty bits of the
+     * TLB entries are written back to the page table, and the entries are
+     * saved in this process's TLB shadow. The TLB itself is left alone, in
+     * case this process is the next to run.
      */
     public void saveState() {
 	super.saveState();
+
+	if (tlbOwner != this)
+	    return;
+
+	Processor processor = Machine.processor();
+	for (int i=0; i<processor.getTLBSize(); i++) {
+	    syncTLBEntry(i);
+
+	    TranslationEntry tlbEntry = processor.readTLBEntry(i);
+	    tlbEntry.used = tlbEntry.dirty = false;
+	    processor.writeTLBEntry(i, tlbEntry);
+	    tlbShadow[i] = tlbEntry;
+	}
     }
 
     /**
      * Restore the state of this process after a context switch. Called by
-     * <tt>UThread.restoreState()</tt>.
+     * <tt>UThread.restoreState()</tt>. If another process has used the TLB
+     * since this process last ran, the TLB is reloaded from this process's
+     * TLB shadow, leaving out translations for pages that have since been
+     * replaced or shared.
      */
     public void restoreState() {
-	super.restoreState();
+	if (tlbOwner == this || pageTable == null)
+	    return;
+
+	Processor processor = Machine.processor();
+	for (int i=0; i<processor.getTLBSize(); i++) {
+	    TranslationEntry tlbEntry = tlbShadow[i];
+	    if (tlbEntry != null && tlbEntry.valid) {
+		TranslationEntry entry = pageTable[tlbEntry.vpn];
+		if (!entry.valid || entry.ppn != tlbEntry.ppn ||
+		    entry.readOnly != tlbEntry.readOnly)
+		    tlbEntry = invalidEntry;
+	    }
+	    else {
+		tlbEntry = invalidEntry;
+	    }
+
+	    processor.writeTLBEntry(i, tlbEntry);
+	}
+
+	tlbOwner = this;
     }
 
     /**
@@ -39,15 +123,169 @@ public class VMProcess extends UserProcess {
      * @return	<tt>true</tt> if successful.
      */
     protected boolean loadSections() {
-	return super.loadSections();
+	initPageTable();
+
+	return true;
+    }
+
+    /**
+     * Give this process the memory of <i>parent</i> by sharing it. Every
+     * resident page of the parent is mapped read-only by both processes, and
+     * every swap slot of the parent is shared with this process. Pages the
+     * parent has not touched yet are demand-paged by this process from its
+     * own handle on the executable.
+     *
+     * @param	parent	the process whose memory to share.
+     * @return	<tt>true</tt>.
+     */
+    protected boolean forkSections(UserProcess parent) {
+	VMProcess vmParent = (VMProcess) parent;
+
+	initPageTable();
+
+	VMKernel.vmLock.acquire();
+
+	// the TLB may hold newer used and dirty bits, and write access to
+	// pages that are about to become read-only
+	if (tlbOwner == vmParent) {
+	    harvestTLB();
+	    invalidateTLB();
+	}
+
+	for (int vpn=0; vpn<numPages; vpn++) {
+	    TranslationEntry from = vmParent.pageTable[vpn];
+	    TranslationEntry to = pageTable[vpn];
+
+	    if (from.valid) {
+		if (!from.readOnly) {
+		    from.readOnly = true;
+		    vmParent.copyOnWrite[vpn] = true;
+		}
+		copyOnWrite[vpn] = vmParent.copyOnWrite[vpn];
+
+		to.ppn = from.ppn;
+		to.valid = true;
+		to.readOnly = true;
+		to.dirty = from.dirty;
+
+		VMKernel.shareFrame(from.ppn, this);
+		Machine.stats().numForkPagesShared++;
+	    }
+
+	    if (vmParent.swapSlots[vpn] != -1) {
+		swapSlots[vpn] = vmParent.swapSlots[vpn];
+		VMKernel.swap.share(swapSlots[vpn]);
+	    }
+	}
+
+	VMKernel.vmLock.release();
+
+	return true;
+    }
+
+    /**
+     * Create a page table in which every page is invalid, and record where
+     * each page of the executable comes from.
+     */
+    private void initPageTable() {
+	pageTable = new TranslationEntry[numPages];
+	for (int vpn=0; vpn<numPages; vpn++)
+	    pageTable[vpn] = new TranslationEntry(vpn, -1, false, false, false, false);
+
+	tlbShadow = new TranslationEntry[Machine.processor().getTLBSize()];
+
+	// remember where each page of the executable comes from
+	pageSections = new CoffSection[numPages];
+	sectionPages = new int[numPages];
+	swapSlots = new int[numPages];
+	Arrays.fill(swapSlots, -1);
+	prefetched = new boolean[numPages];
+	copyOnWrite = new boolean[numPages];
+	nextSharers = new VMProcess[numPages];
+
+	for (int s=0; s<coff.getNumSections(); s++) {
+	    CoffSection section = coff.getSection(s);
+
+	    Lib.debug(dbgProcess, "\tdemand-paging " + section.getName()
+		      + " section (" + section.getLength() + " pages)");
+
+	    for (int i=0; i<section.getLength(); i++) {
+		int vpn = section.getFirstVPN()+i;
+
+		pageTable[vpn].readOnly = section.isReadOnly();
+		pageSections[vpn] = section;
+		sectionPages[vpn] = i;
+	    }
+	}
     }
 
     /**
      * Release any resources allocated by <tt>loadSections()</tt>.
      */
     protected void unloadSections() {
-	super.unloadSections();
-    }    
+	VMKernel.vmLock.acquire();
+	for (int vpn=0; vpn<numPages; vpn++) {
+	    if (pageTable[vpn].valid)
+		VMKernel.releaseFrame(this, pageTable[vpn].ppn);
+	    if (swapSlots[vpn] != -1)
+		VMKernel.swap.free(swapSlots[vpn]);
+	    if (prefetched[vpn])
+		Machine.stats().numPrefetchMisses++;
+	}
+	VMKernel.vmLock.release();
+
+	// the last process's pages were all released above
+	UserKernel.textCache.close(textKey);
+
+	// acquiring the lock may have let other processes use the TLB
+	if (tlbOwner == this) {
+	    invalidateTLB();
+	    tlbOwner = null;
+	}
+
+	coff.close();
+	pageTable = null;
+	pageSections = null;
+	sectionPages = null;
+	swapSlots = null;
+	prefetched = null;
+	copyOnWrite = null;
+	nextSharers = null;
+	tlbShadow = null;
+	textFrames = null;
+    }
+
+    /**
+     * Return the page table entry for the page containing the specified
+     * virtual address, first bringing the page into memory if it is not
+     * there yet, or giving this process its own copy if it is about to be
+     * written and is shared.
+     */
+    protected TranslationEntry translate(int vaddr, boolean write) {
+	if (vaddr >= 0 && pageTable != null) {
+	    int vpn = Processor.pageFromAddress(vaddr);
+	    if (vpn < numPages && write && copyOnWrite[vpn]) {
+		if (!breakCopyOnWrite(vpn))
+		    return null;
+	    }
+	    else if (vpn < numPages && !pageTable[vpn].valid) {
+		VMKernel.vmLock.acquire();
+		boolean present = pageIn(vpn);
+		VMKernel.vmLock.release();
+
+		if (!present)
+		    return null;
+	    }
+	    else if (vpn < numPages && prefetched[vpn]) {
+		prefetched[vpn] = false;
+		Machine.stats().numPrefetchHits++;
+		if (prefetchWindow < VMKernel.getPrefetchLimit())
+		    prefetchWindow++;
+	    }
+	}
+
+	return super.translate(vaddr, write);
+    }
 
     /**
      * Handle a user exception. Called by
@@ -61,12 +299,524 @@ public class VMProcess extends UserProcess {
 	Processor processor = Machine.processor();
 
 	switch (cause) {
+	case Processor.exceptionReadOnly:
+	    if (handleReadOnly(processor.readRegister(Processor.regBadVAddr)))
+		break;
+	    super.handleException(cause);
+	    break;
+	case Processor.exceptionTLBMiss:
+	    if (handleTLBMiss(processor.readRegister(Processor.regBadVAddr)))
+		break;
+	    // fall through: the address is not mapped
 	default:
 	    super.handleException(cause);
 	    break;
 	}
     }
-	
+
+    /**
+     * Load the translation for the page containing <i>vaddr</i> into the TLB,
+     * bringing the page into memory first if necessary. The faulting
+     * instruction is then restarted.
+     *
+     * @param	vaddr	the virtual address that missed in the TLB.
+     * @return	<tt>true</tt> if the address is mapped.
+     */
+    private boolean handleTLBMiss(int vaddr) {
+	// keep the page from being replaced before it is in the TLB
+	boolean intStatus = Machine.interrupt().disable();
+
+	TranslationEntry entry = translate(vaddr, false);
+	if (entry == null) {
+	    Machine.interrupt().restore(intStatus);
+	    return false;
+	}
+
+	Processor processor = Machine.processor();
+	Lib.assertTrue(tlbOwner == this);
+
+	// use an invalid TLB entry if there is one, else the first entry the
+	// clock hand finds unused since it last passed
+	int victim = -1;
+	for (int i=0; i<processor.getTLBSize() && victim == -1; i++) {
+	    if (!processor.readTLBEntry(i).valid)
+		victim = i;
+	}
+	while (victim == -1) {
+	    int i = tlbHand;
+	    tlbHand = (tlbHand + 1) % processor.getTLBSize();
+
+	    TranslationEntry tlbEntry = processor.readTLBEntry(i);
+	    syncTLBEntry(i);
+	    if (!tlbEntry.used) {
+		victim = i;
+	    }
+	    else {
+		tlbEntry.used = tlbEntry.dirty = false;
+		processor.writeTLBEntry(i, tlbEntry);
+	    }
+	}
+
+	// the TLB entry's bits record only what happens from now on
+	TranslationEntry tlbEntry = new TranslationEntry(entry);
+	tlbEntry.used = tlbEntry.dirty = false;
+	processor.writeTLBEntry(victim, tlbEntry);
+
+	Machine.interrupt().restore(intStatus);
+	return true;
+    }
+
+    /**
+     * Handle a write to a read-only page. If the page is only read-only
+     * because it is shared after a fork, this process gets its own copy, and
+     * the faulting instruction is restarted.
+     *
+     * @param	vaddr	the virtual address that was written.
+     * @return	<tt>true</tt> if the page can now be written.
+     */
+    private boolean handleReadOnly(int vaddr) {
+	int vpn = Processor.pageFromAddress(vaddr);
+	if (vpn >= numPages || !copyOnWrite[vpn])
+	    return false;
+
+	return breakCopyOnWrite(vpn);
+    }
+
+    /**
+     * Give this process write access to a page that it shares with other
+     * processes after a fork: copy the page to a physical page of its own,
+     * unless no other process maps it any more. Brings the page into memory
+     * first if it has been replaced.
+     *
+     * @param	vpn	the shared page.
+     * @return	<tt>true</tt> if the page can now be written, or
+     *		<tt>false</tt> if no physical page could be found for it.
+     */
+    private boolean breakCopyOnWrite(int vpn) {
+	VMKernel.vmLock.acquire();
+
+	TranslationEntry entry = pageTable[vpn];
+	if (!entry.valid && !pageIn(vpn)) {
+	    VMKernel.vmLock.release();
+	    return false;
+	}
+
+	// paging the page in may already have given this process its own copy
+	if (copyOnWrite[vpn]) {
+	    int oldPPN = entry.ppn;
+	    if (VMKernel.getRefCount(oldPPN) > 1) {
+		// keep the shared page in memory while it is copied
+		VMKernel.pinFrame(oldPPN);
+		VMKernel.releaseFrame(this, oldPPN);
+
+		int ppn = VMKernel.allocateFrame(this, vpn);
+		if (ppn == -1) {
+		    VMKernel.shareFrame(oldPPN, this);
+		    VMKernel.unpinFrame(oldPPN);
+		    VMKernel.vmLock.release();
+		    return false;
+		}
+
+		byte[] memory = Machine.processor().getMemory();
+		System.arraycopy(memory, oldPPN*pageSize,
+				 memory, ppn*pageSize, pageSize);
+
+		VMKernel.unpinFrame(oldPPN);
+
+		Lib.debug(dbgVM, "\tcopying shared vpn " + vpn + " from ppn "
+			  + oldPPN + " to ppn " + ppn);
+
+		entry.ppn = ppn;
+		VMKernel.unpinFrame(ppn);
+		Machine.stats().numCopyOnWriteCopies++;
+	    }
+
+	    entry.readOnly = false;
+	    copyOnWrite[vpn] = false;
+	    invalidateTLBEntry(vpn);
+	}
+
+	VMKernel.vmLock.release();
+	return true;
+    }
+
+    /**
+     * Bring a virtual page into memory: get a physical page for it from
+     * <tt>VMKernel</tt> and fill it from the swap file if the page has been
+     * swapped out, otherwise from the executable, or with zeros if the page is
+     * not part of a COFF section. If the fault follows on from the last one,
+     * the pages after this one that are not in memory are brought in as well,
+     * up to the prefetch window. Must be called with <tt>VMKernel.vmLock</tt>
+     * held.
+     *
+     * @param	vpn	the virtual page.
+     * @return	<tt>true</tt> if the page is in memory, or <tt>false</tt> if
+     *		no physical page could be found for it.
+     */
+    private boolean pageIn(int vpn) {
+	// another fault may have brought the page in while we waited
+	if (pageTable[vpn].valid)
+	    return true;
+
+	// another process running this executable may have brought it in
+	if (textFrames[vpn] != -1) {
+	    TranslationEntry entry = pageTable[vpn];
+	    entry.ppn = textFrames[vpn];
+	    entry.valid = true;
+	    entry.readOnly = true;
+	    entry.used = false;
+	    entry.dirty = false;
+	    copyOnWrite[vpn] = false;
+	    prefetched[vpn] = false;
+
+	    VMKernel.shareFrame(entry.ppn, this);
+
+	    Machine.stats().numPageFaults++;
+	    Machine.stats().numTextPagesShared++;
+	    return true;
+	}
+
+	int count = 1;
+	if (vpn == nextSequentialFault) {
+	    // prefetching turned itself off; turn it back on if the program
+	    // keeps faulting on one page after another
+	    if (prefetchWindow == 0 && ++sequentialFaults == rearmFaults)
+		prefetchWindow = 1;
+
+	    prefetchWindow = Math.min(prefetchWindow, VMKernel.getPrefetchLimit());
+	    count += prefetchWindow;
+	}
+	else {
+	    sequentialFaults = 0;
+	}
+
+	int[] ppns = new int[count];
+	int n = 0;
+	while (n < count && vpn+n < numPages && !pageTable[vpn+n].valid &&
+	       textFrames[vpn+n] == -1) {
+	    int ppn = VMKernel.allocateFrame(this, vpn+n);
+	    if (ppn == -1)
+		break;
+
+	    ppns[n++] = ppn;
+	}
+
+	if (n == 0) {
+	    Lib.debug(dbgVM, "\tout of physical memory");
+	    return false;
+	}
+
+	Lib.debug(dbgVM, "\tpaging in vpns " + vpn + "-" + (vpn+n-1));
+
+	for (int i=0; i<n; )
+	    i += fillPages(vpn+i, ppns, i, n-i);
+
+	for (int i=0; i<n; i++) {
+	    TranslationEntry entry = pageTable[vpn+i];
+	    entry.ppn = ppns[i];
+	    entry.valid = true;
+	    entry.used = false;
+	    entry.dirty = false;
+
+	    // the page is private now, even if it was shared before it was
+	    // replaced
+	    CoffSection section = pageSections[vpn+i];
+	    entry.readOnly = (section != null && section.isReadOnly());
+	    copyOnWrite[vpn+i] = false;
+
+	    if (entry.readOnly)
+		VMKernel.cacheText(ppns[i], textFrames);
+
+	    prefetched[vpn+i] = (i > 0);
+
+	    VMKernel.unpinFrame(ppns[i]);
+	}
+
+	nextSequentialFault = vpn+n;
+
+	Machine.stats().numPageFaults++;
+	return true;
+    }
+
+    /**
+     * Fill the physical pages for one or more consecutive virtual pages. A
+     * page in the swap file is read together with the pages after it that
+     * are in the following swap slots, up to the swap file's cluster size;
+     * any other page is filled by itself.
+     *
+     * @param	vpn	the first virtual page to fill.
+     * @param	ppns	the physical pages being filled.
+     * @param	offset	the index in <i>ppns</i> of the physical page for
+     *			<i>vpn</i>.
+     * @param	count	the number of pages left to fill.
+     * @return	the number of pages filled.
+     */
+    private int fillPages(int vpn, int[] ppns, int offset, int count) {
+	SwapFile swap = VMKernel.swap;
+
+	if (swapSlots[vpn] != -1) {
+	    int n = 1;
+	    while (n < count && n < swap.getClusterSize() &&
+		   swapSlots[vpn+n] == swapSlots[vpn]+n)
+		n++;
+
+	    swap.read(swapSlots[vpn], ppns, offset, n);
+	    return n;
+	}
+
+	int ppn = ppns[offset];
+	if (pageSections[vpn] != null) {
+	    pageSections[vpn].loadPage(sectionPages[vpn], ppn);
+	}
+	else {
+	    byte[] memory = Machine.processor().getMemory();
+	    Arrays.fill(memory, ppn*pageSize, (ppn+1)*pageSize, (byte) 0);
+	}
+	return 1;
+    }
+
+    /**
+     * Remove a page from memory because <tt>VMKernel</tt> is giving its
+     * physical page to another page. If this process owns the TLB, the page's
+     * TLB entry is invalidated first. A dirty page is written to the swap
+     * file. Called with <tt>VMKernel.vmLock</tt> held.
+     *
+     * @param	vpn	the virtual page to remove.
+     */
+    void evictPage(int vpn) {
+	TranslationEntry entry = pageTable[vpn];
+	Lib.assertTrue(entry.valid);
+
+	invalidateTLBEntry(vpn);
+
+	entry.valid = false;
+	nextSharers[vpn] = null;
+
+	if (prefetched[vpn]) {
+	    prefetched[vpn] = false;
+	    Machine.stats().numPrefetchMisses++;
+	    prefetchWindow /= 2;
+	    sequentialFaults = 0;
+	}
+
+	if (entry.dirty) {
+	    pageOut(vpn);
+	    entry.dirty = false;
+	}
+    }
+
+    /**
+     * Write a dirty page to the swap file. Dirty resident neighbors of the
+     * page that can go in the slots next to it are written in the same
+     * operation, up to the swap file's cluster size, and become clean. A page
+     * keeps its slot once it has one, unless the slot is shared with another
+     * process, so neighbors are only added if they have no slot yet (when the
+     * page has none either) or if their unshared slots follow on from the
+     * page's slot.
+     *
+     * @param	vpn	the page to write out.
+     */
+    private void pageOut(int vpn) {
+	SwapFile swap = VMKernel.swap;
+
+	// a slot shared with another process must not be overwritten
+	if (swapSlots[vpn] != -1 && swap.isShared(swapSlots[vpn])) {
+	    swap.free(swapSlots[vpn]);
+	    swapSlots[vpn] = -1;
+	}
+
+	int lo = vpn, hi = vpn;
+	while (hi-lo+1 < swap.getClusterSize() && clusterable(vpn, hi+1))
+	    hi++;
+	while (hi-lo+1 < swap.getClusterSize() && clusterable(vpn, lo-1))
+	    lo--;
+
+	if (swapSlots[vpn] == -1) {
+	    int first = swap.allocate(hi-lo+1);
+	    if (first == -1) {
+		lo = hi = vpn;
+		first = swap.allocate(1);
+	    }
+	    Lib.assertTrue(first != -1, "swap file is full");
+
+	    for (int n=lo; n<=hi; n++)
+		swapSlots[n] = first + (n-lo);
+	}
+
+	// gather the cluster before blocking; a neighbor written to after
+	// being copied is simply dirty again
+	byte[] memory = Machine.processor().getMemory();
+	byte[] buffer = swap.getBuffer();
+	for (int n=lo; n<=hi; n++) {
+	    System.arraycopy(memory, pageTable[n].ppn*pageSize,
+			     buffer, (n-lo)*pageSize, pageSize);
+	    pageTable[n].dirty = false;
+	}
+
+	Lib.debug(dbgVM, "\tswapping out vpns " + lo + "-" + hi + " to slot "
+		  + swapSlots[lo]);
+
+	swap.write(swapSlots[lo], hi-lo+1);
+    }
+
+    /**
+     * Test whether page <i>n</i> can be written out in the same cluster as
+     * page <i>vpn</i>.
+     */
+    private boolean clusterable(int vpn, int n) {
+	if (n < 0 || n >= numPages)
+	    return false;
+
+	TranslationEntry entry = pageTable[n];
+	if (!entry.valid || !entry.dirty || VMKernel.isPinned(entry.ppn))
+	    return false;
+
+	if (swapSlots[vpn] == -1)
+	    return swapSlots[n] == -1;
+	else
+	    return swapSlots[n] != -1 && swapSlots[n] == swapSlots[vpn] + (n-vpn)
+		&& !VMKernel.swap.isShared(swapSlots[n]);
+    }
+
+    /**
+     * Copy the used and dirty bits of every TLB entry to the page table of
+     * the process that owns the TLB, and clear them in the TLB, so the page
+     * table shows which pages were used since the last harvest.
+     */
+    static void harvestTLB() {
+	if (tlbOwner == null)
+	    return;
+
+	Processor processor = Machine.processor();
+	for (int i=0; i<processor.getTLBSize(); i++) {
+	    TranslationEntry tlbEntry = processor.readTLBEntry(i);
+	    if (tlbEntry.valid && (tlbEntry.used || tlbEntry.dirty)) {
+		tlbOwner.syncTLBEntry(i);
+		tlbEntry.used = tlbEntry.dirty = false;
+		processor.writeTLBEntry(i, tlbEntry);
+	    }
+	}
+    }
+
+    /**
+     * Return the next process in the chain of processes that map the same
+     * physical page as this process does at a virtual page.
+     *
+     * @param	vpn	the virtual page number.
+     * @return	the next process, or <tt>null</tt> if this is the last.
+     */
+    VMProcess getNextSharer(int vpn) {
+	return nextSharers[vpn];
+    }
+
+    /**
+     * Set the next process in the chain of processes that map the same
+     * physical page as this process does at a virtual page.
+     *
+     * @param	vpn	the virtual page number.
+     * @param	next	the next process, or <tt>null</tt>.
+     */
+    void setNextSharer(int vpn, VMProcess next) {
+	nextSharers[vpn] = next;
+    }
+
+    /**
+     * Return the page table entry for a virtual page.
+     *
+     * @param	vpn	the virtual page number.
+     * @return	the page table entry.
+     */
+    TranslationEntry getEntry(int vpn) {
+	return pageTable[vpn];
+    }
+
+    /**
+     * Wait for this process to exit.
+     */
+    void waitForExit() {
+	finished.P();
+    }
+
+    /**
+     * Copy the used and dirty bits of a TLB entry back to the page table.
+     */
+    private void syncTLBEntry(int i) {
+	TranslationEntry tlbEntry = Machine.processor().readTLBEntry(i);
+	if (!tlbEntry.valid)
+	    return;
+
+	TranslationEntry entry = pageTable[tlbEntry.vpn];
+	entry.used |= tlbEntry.used;
+	entry.dirty |= tlbEntry.dirty;
+    }
+
+    /**
+     * If this process owns the TLB, write back and invalidate the TLB entry
+     * for a virtual page, if there is one.
+     */
+    private void invalidateTLBEntry(int vpn) {
+	if (tlbOwner != this)
+	    return;
+
+	Processor processor = Machine.processor();
+	for (int i=0; i<processor.getTLBSize(); i++) {
+	    TranslationEntry tlbEntry = processor.readTLBEntry(i);
+	    if (tlbEntry.valid && tlbEntry.vpn == vpn) {
+		syncTLBEntry(i);
+		processor.writeTLBEntry(i, invalidEntry);
+	    }
+	}
+    }
+
+    /**
+     * Invalidate every TLB entry, without saving its bits.
+     */
+    private void invalidateTLB() {
+	Processor processor = Machine.processor();
+	for (int i=0; i<processor.getTLBSize(); i++)
+	    processor.writeTLBEntry(i, invalidEntry);
+    }
+
+    /**
+     * The COFF section each virtual page is loaded from, or <tt>null</tt> for
+     * pages that are zero-filled.
+     */
+    private CoffSection[] pageSections;
+    /** The page number within its section of each virtual page. */
+    private int[] sectionPages;
+    /** The swap slot of each virtual page, or -1 if it has none. */
+    private int[] swapSlots;
+    /** Whether each virtual page was brought in ahead and not used yet. */
+    private boolean[] prefetched;
+    /**
+     * Whether each virtual page is writable but mapped read-only because it
+     * is shared after a fork.
+     */
+    private boolean[] copyOnWrite;
+    /**
+     * The next process mapping the same physical page at each virtual page;
+     * see <tt>VMKernel.shareFrame()</tt>.
+     */
+    private VMProcess[] nextSharers;
+    /** The page whose fault would follow on from the last one. */
+    private int nextSequentialFault = -1;
+    /** The number of pages to bring in ahead of a sequential fault. */
+    private int prefetchWindow = 1;
+    /** The number of sequential faults since prefetching was turned off. */
+    private int sequentialFaults = 0;
+
+    /** The sequential faults it takes to turn prefetching back on. */
+    private static final int rearmFaults = 4;
+    /** The TLB entries of this process when it was last switched out. */
+    private TranslationEntry[] tlbShadow;
+
+    /** The process whose translations are in the TLB, or <tt>null</tt>. */
+    private static VMProcess tlbOwner = null;
+    /** The clock hand for choosing a TLB entry to replace. */
+    private static int tlbHand = 0;
+
+    private static final TranslationEntry invalidEntry = new TranslationEntry();
+
     private static final int pageSize = Processor.pageSize;
     private static final char dbgProcess = 'a';
     private static final char dbgVM = 'v';